@@ -0,0 +1,347 @@
+package msgexport;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of a synthetic iOS backup for load tests. It writes the address book, the message database with
+ * attachments and the Manifest.db at the sha1 paths of an iOS 10 backup.
+ * <p>
+ * usage: backup-dir [contacts] [messages] [image-percent]
+ */
+public class BackupGenerator
+{
+  public static final String COUNTRY_CODE = "49";
+  public static final String AREA_CODE = "30";
+
+  // image widths of the attachments, from stickers and screenshots to phone photos
+  private static final int[] IMAGE_WIDTHS = {320, 480, 1242, 1600, 4032};
+  private static final int IMAGE_VARIANTS = 4;
+  private static final String[] WORDS = {"hi", "hello", "see", "you", "tomorrow", "at", "the", "station", "ok", "thanks",
+                                         "great", "where", "are", "now", "late", "sorry", "call", "me", "later", "\ud83d\ude00"};
+
+  private final File backupDir;
+  private final int contactCount;
+  private final int messageCount;
+  private final int imagePercent;
+  private final Random random = new Random(42);
+
+  private int imageCount;
+
+  public BackupGenerator(File backupDir, int contactCount, int messageCount, int imagePercent)
+  {
+    this.backupDir = backupDir;
+    this.contactCount = contactCount;
+    this.messageCount = messageCount;
+    this.imagePercent = imagePercent;
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    if(args.length < 1)
+    {
+      throw new IllegalArgumentException("missing parameter. usage: backup-dir [contacts] [messages] [image-percent]");
+    }
+
+    BackupGenerator generator = new BackupGenerator(new File(args[0]),
+                                                    args.length > 1 ? Integer.parseInt(args[1]) : 100,
+                                                    args.length > 2 ? Integer.parseInt(args[2]) : 10000,
+                                                    args.length > 3 ? Integer.parseInt(args[3]) : 5);
+    generator.generate();
+    System.out.printf("generated %d contacts, %d messages and %d images in %s%n",
+                      generator.getContactCount(), generator.getMessageCount(), generator.getImageCount(), args[0]);
+  }
+
+  public void generate()
+    throws IOException, SQLException
+  {
+    if(!backupDir.isDirectory() && !backupDir.mkdirs())
+    {
+      throw new IOException(String.format("can not create backup directory '%s'", backupDir));
+    }
+
+    List<String[]> manifest = new ArrayList<>();
+    manifest.add(writeAddressBook());
+    manifest.addAll(writeMessages());
+    writeManifest(manifest);
+  }
+
+  public int getContactCount()
+  {
+    return contactCount;
+  }
+
+  public int getMessageCount()
+  {
+    return messageCount;
+  }
+
+  public int getImageCount()
+  {
+    return imageCount;
+  }
+
+  private String[] writeAddressBook()
+    throws SQLException
+  {
+    String[] file = {BackupIndex.HOME_DOMAIN, "Library/AddressBook/AddressBook.sqlitedb"};
+    try (Connection connection = openDatabase(file))
+    {
+      try (Statement statement = connection.createStatement())
+      {
+        statement.execute("CREATE TABLE ABPerson (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, First TEXT, Last TEXT, Organization TEXT)");
+        statement.execute("CREATE TABLE ABMultiValue (UID INTEGER PRIMARY KEY, record_id INTEGER, property INTEGER, identifier INTEGER, label INTEGER, value TEXT)");
+      }
+
+      try (PreparedStatement person = connection.prepareStatement("INSERT INTO ABPerson (ROWID, First, Last) VALUES (?, ?, ?)");
+           PreparedStatement multiValue = connection.prepareStatement("INSERT INTO ABMultiValue (record_id, property, identifier, label, value) VALUES (?, ?, ?, ?, ?)"))
+      {
+        for(int contact = 1; contact <= contactCount; contact++)
+        {
+          person.setInt(1, contact);
+          person.setString(2, "First" + contact);
+          person.setString(3, "Last" + contact);
+          person.addBatch();
+
+          // phone 3, email 4
+          addMultiValue(multiValue, contact, 3, 0, formatPhone(contact));
+          addMultiValue(multiValue, contact, 4, 1, formatEmail(contact));
+        }
+        person.executeBatch();
+        multiValue.executeBatch();
+      }
+      connection.commit();
+    }
+
+    return file;
+  }
+
+  private static void addMultiValue(PreparedStatement multiValue, int contact, int property, int identifier, String value)
+    throws SQLException
+  {
+    multiValue.setInt(1, contact);
+    multiValue.setInt(2, property);
+    multiValue.setInt(3, identifier);
+    multiValue.setInt(4, property);
+    multiValue.setString(5, value);
+    multiValue.addBatch();
+  }
+
+  private List<String[]> writeMessages()
+    throws SQLException, IOException
+  {
+    List<String[]> files = new ArrayList<>();
+    String[] file = {BackupIndex.HOME_DOMAIN, "Library/SMS/sms.db"};
+    files.add(file);
+
+    File[][] images = createImages();
+
+    try (Connection connection = openDatabase(file))
+    {
+      try (Statement statement = connection.createStatement())
+      {
+        statement.execute("CREATE TABLE handle (ROWID INTEGER PRIMARY KEY AUTOINCREMENT UNIQUE, id TEXT NOT NULL, country TEXT, service TEXT NOT NULL, uncanonicalized_id TEXT)");
+        statement.execute("CREATE TABLE message (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, guid TEXT UNIQUE NOT NULL, text TEXT, handle_id INTEGER DEFAULT 0, service TEXT, date INTEGER, is_from_me INTEGER DEFAULT 0, cache_has_attachments INTEGER DEFAULT 0)");
+        statement.execute("CREATE TABLE attachment (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, guid TEXT UNIQUE NOT NULL, filename TEXT, mime_type TEXT, transfer_name TEXT, total_bytes INTEGER DEFAULT 0)");
+        statement.execute("CREATE TABLE message_attachment_join (message_id INTEGER REFERENCES message (ROWID) ON DELETE CASCADE, attachment_id INTEGER REFERENCES attachment (ROWID) ON DELETE CASCADE, UNIQUE(message_id, attachment_id))");
+      }
+
+      try (PreparedStatement handle = connection.prepareStatement("INSERT INTO handle (ROWID, id, country, service) VALUES (?, ?, 'de', ?)"))
+      {
+        for(int contact = 1; contact <= contactCount; contact++)
+        {
+          // one SMS handle and one iMessage handle of every contact
+          handle.setInt(1, contact * 2);
+          handle.setString(2, "+" + COUNTRY_CODE + formatPhone(contact).substring(1).replace(" ", ""));
+          handle.setString(3, "SMS");
+          handle.addBatch();
+          handle.setInt(1, contact * 2 + 1);
+          handle.setString(2, formatEmail(contact));
+          handle.setString(3, "iMessage");
+          handle.addBatch();
+        }
+        handle.executeBatch();
+      }
+
+      try (PreparedStatement message = connection.prepareStatement("INSERT INTO message (ROWID, guid, text, handle_id, service, date, is_from_me, cache_has_attachments) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+           PreparedStatement attachment = connection.prepareStatement("INSERT INTO attachment (ROWID, guid, filename, mime_type, transfer_name, total_bytes) VALUES (?, ?, ?, ?, ?, ?)");
+           PreparedStatement join = connection.prepareStatement("INSERT INTO message_attachment_join (message_id, attachment_id) VALUES (?, ?)"))
+      {
+        long date = 500000000L; // seconds since 01-01-2001
+        for(int row = 1; row <= messageCount; row++)
+        {
+          int handleID = 2 + random.nextInt(contactCount * 2);
+          boolean isImage = random.nextInt(100) < imagePercent;
+          date += random.nextInt(600);
+
+          message.setInt(1, row);
+          message.setString(2, "message-" + row);
+          message.setString(3, isImage ? "\ufffc" : createText());
+          message.setInt(4, handleID);
+          message.setString(5, handleID % 2 == 0 ? "SMS" : "iMessage");
+          message.setLong(6, date);
+          message.setInt(7, random.nextInt(2));
+          message.setInt(8, isImage ? 1 : 0);
+          message.addBatch();
+
+          if(isImage)
+          {
+            imageCount++;
+            boolean png = random.nextInt(4) == 0;
+            File image = images[png ? 1 : 0][random.nextInt(images[0].length)];
+            String relativePath = String.format("Library/SMS/Attachments/%02x/%02d/IMG_%05d.%s", row % 256, row % 100, row, png ? "PNG" : "JPG");
+            files.add(new String[]{BackupIndex.MEDIA_DOMAIN, relativePath});
+            File target = getBackupFile(BackupIndex.MEDIA_DOMAIN, relativePath);
+            Files.createDirectories(target.getParentFile().toPath());
+            Files.copy(image.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            attachment.setInt(1, imageCount);
+            attachment.setString(2, "attachment-" + imageCount);
+            attachment.setString(3, "~/" + relativePath);
+            attachment.setString(4, png ? "image/png" : "image/jpeg");
+            attachment.setString(5, target.getName());
+            attachment.setLong(6, image.length());
+            attachment.addBatch();
+
+            join.setInt(1, row);
+            join.setInt(2, imageCount);
+            join.addBatch();
+          }
+
+          if(row % 10000 == 0)
+          {
+            message.executeBatch();
+            attachment.executeBatch();
+            join.executeBatch();
+          }
+        }
+        message.executeBatch();
+        attachment.executeBatch();
+        join.executeBatch();
+      }
+      connection.commit();
+    }
+    finally
+    {
+      for(File[] formatImages : images)
+      {
+        for(File image : formatImages)
+        {
+          image.delete();
+        }
+      }
+    }
+
+    return files;
+  }
+
+  private void writeManifest(List<String[]> files)
+    throws SQLException
+  {
+    try (Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", new File(backupDir, "Manifest.db").getAbsolutePath())))
+    {
+      connection.setAutoCommit(false);
+      try (Statement statement = connection.createStatement())
+      {
+        statement.execute("CREATE TABLE Files (fileID TEXT PRIMARY KEY, domain TEXT, relativePath TEXT, flags INTEGER, file BLOB)");
+      }
+      try (PreparedStatement insert = connection.prepareStatement("INSERT INTO Files (fileID, domain, relativePath, flags) VALUES (?, ?, ?, 1)"))
+      {
+        for(String[] file : files)
+        {
+          insert.setString(1, Util.sha1(file[0] + "-" + file[1]));
+          insert.setString(2, file[0]);
+          insert.setString(3, file[1]);
+          insert.addBatch();
+        }
+        insert.executeBatch();
+      }
+      connection.commit();
+    }
+  }
+
+  /**
+   * @return some variants of JPEG (index 0) and PNG (index 1) images with random widths
+   */
+  private File[][] createImages()
+    throws IOException
+  {
+    File[][] images = new File[2][IMAGE_VARIANTS];
+    for(int variant = 0; variant < IMAGE_VARIANTS; variant++)
+    {
+      int width = IMAGE_WIDTHS[random.nextInt(IMAGE_WIDTHS.length)];
+      BufferedImage image = createImage(width, width * 3 / 4);
+      images[0][variant] = File.createTempFile("generator", ".jpg");
+      ImageIO.write(image, "jpeg", images[0][variant]);
+      images[1][variant] = File.createTempFile("generator", ".png");
+      ImageIO.write(image, "png", images[1][variant]);
+    }
+    return images;
+  }
+
+  private BufferedImage createImage(int width, int height)
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int seed = random.nextInt(256);
+    for(int y = 0; y < height; y++)
+    {
+      for(int x = 0; x < width; x++)
+      {
+        int r = (x * 255 / width + random.nextInt(16)) & 0xff;
+        int g = (y * 255 / height + random.nextInt(16)) & 0xff;
+        image.setRGB(x, y, (r << 16) | (g << 8) | seed);
+      }
+    }
+    return image;
+  }
+
+  private String createText()
+  {
+    StringBuilder builder = new StringBuilder();
+    int words = 1 + random.nextInt(20);
+    for(int word = 0; word < words; word++)
+    {
+      builder.append(word > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static String formatPhone(int contact)
+  {
+    // national format, eg. 0171 1234567
+    return String.format("0%d %07d", 150 + contact % 30, contact);
+  }
+
+  private static String formatEmail(int contact)
+  {
+    return String.format("contact%d@example.com", contact);
+  }
+
+  private Connection openDatabase(String[] file)
+    throws SQLException
+  {
+    File dbFile = getBackupFile(file[0], file[1]);
+    dbFile.getParentFile().mkdirs();
+    Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", dbFile.getAbsolutePath()));
+    connection.setAutoCommit(false);
+    return connection;
+  }
+
+  private File getBackupFile(String domain, String relativePath)
+  {
+    return new File(backupDir, Util.createFilename(Util.sha1(domain + "-" + relativePath)));
+  }
+}
@@ -0,0 +1,60 @@
+package msgexport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the row conversions of the contact and message builders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuilderBenchmark
+{
+  // typical address book values: international, national, local and broken numbers
+  private final String[] phoneNumbers = {"+49 171 1234567", "0171/123 45-67", "1234567", "+1 (555) 010-9999", "0 171 1234567"};
+  private final ContactBuilder contactBuilder = new ContactBuilder("49", "30");
+  private final byte[] text = "Hi, see you at 8 at the station? 🙂".getBytes(StandardCharsets.UTF_8);
+
+  @Benchmark
+  public void addPhoneNumber(Blackhole blackhole)
+  {
+    for(String phoneNumber : phoneNumbers)
+    {
+      contactBuilder.addPhoneNumber(phoneNumber, blackhole::consume);
+    }
+  }
+
+  @Benchmark
+  public long parsePhoneNumber()
+  {
+    return contactBuilder.parsePhoneNumber("+49 171 123 45 67");
+  }
+
+  @Benchmark
+  public String getUTF8()
+  {
+    return MessageBuilder.getUTF8(text);
+  }
+
+  @Benchmark
+  public Date getDate()
+  {
+    return MessageBuilder.getDate(500000000L);
+  }
+}
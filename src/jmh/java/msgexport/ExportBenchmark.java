@@ -0,0 +1,155 @@
+package msgexport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end benchmark of {@link MsgExportApplication#export(String[])} on a synthetic backup.
+ * Reports the exported messages and images per second and the peak heap usage of an export.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class ExportBenchmark
+{
+  @State(Scope.Benchmark)
+  public static class Backup
+  {
+    @Param({"100"})
+    private int contacts;
+
+    @Param({"50000"})
+    private int messages;
+
+    @Param({"2"})
+    private int imagePercent;
+
+    private File backupDir;
+    private int imageCount;
+
+    @Setup(Level.Trial)
+    public void setup()
+      throws IOException, SQLException
+    {
+      backupDir = Files.createTempDirectory("backup").toFile();
+      BackupGenerator generator = new BackupGenerator(backupDir, contacts, messages, imagePercent);
+      generator.generate();
+      imageCount = generator.getImageCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+      throws IOException
+    {
+      delete(backupDir.toPath());
+    }
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters
+  {
+    // exported per second, from the number of exported rows and the single shot time
+    public double messagesPerSecond;
+    public double imagesPerSecond;
+    public long peakHeapMB;
+
+    private File exportDir;
+    private long start;
+
+    @Setup(Level.Invocation)
+    public void setup()
+      throws IOException
+    {
+      exportDir = Files.createTempDirectory("export").toFile();
+      ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+      start = System.nanoTime();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown()
+      throws IOException
+    {
+      delete(exportDir.toPath());
+    }
+  }
+
+  @Param({"", "--threads=4", "--single-pass --threads=4 --media", "--single-pass --partitions=4 --threads=4"})
+  private String options;
+
+  @Benchmark
+  public void export(Backup backup, Counters counters)
+    throws Exception
+  {
+    List<String> args = new ArrayList<>();
+    args.add(backup.backupDir.getAbsolutePath());
+    args.add(BackupGenerator.COUNTRY_CODE);
+    args.add(BackupGenerator.AREA_CODE);
+    args.add(counters.exportDir.getAbsolutePath());
+    for(String option : options.split(" "))
+    {
+      if(!option.isEmpty())
+      {
+        args.add(option);
+      }
+    }
+
+    new MsgExportApplication().export(args.toArray(new String[0]));
+
+    double seconds = (System.nanoTime() - counters.start) / 1e9;
+    counters.messagesPerSecond = backup.messages / seconds;
+    counters.imagesPerSecond = backup.imageCount / seconds;
+    counters.peakHeapMB = getPeakHeap() / (1024 * 1024);
+  }
+
+  private static long getPeakHeap()
+  {
+    long peak = 0;
+    for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans())
+    {
+      if(memoryPool.getType() == MemoryType.HEAP)
+      {
+        peak += memoryPool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static void delete(Path path)
+    throws IOException
+  {
+    try (Stream<Path> paths = Files.walk(path))
+    {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
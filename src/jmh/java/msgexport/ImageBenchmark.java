@@ -0,0 +1,101 @@
+package msgexport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the attachment image path of the export: probe, copy decision, decode, resize and encode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark
+{
+  @Param({"jpeg", "png"})
+  private String format;
+
+  @Param({"480", "1600", "4032"})
+  private int width;
+
+  // the image options of the export
+  @Param({"", "--subsample"})
+  private String options;
+
+  private final MsgExportApplication application = new MsgExportApplication();
+  private File imageFile;
+  private String mimetype;
+
+  @Setup(Level.Trial)
+  public void setup()
+    throws IOException
+  {
+    mimetype = "image/" + format;
+    imageFile = File.createTempFile("benchmark", "." + format);
+    ImageIO.write(createImage(width, width * 3 / 4), format, imageFile);
+    application.setupImages(new ExportOptions(options.isEmpty() ? new String[0] : options.split(" ")), imageFile.getParentFile());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    imageFile.delete();
+  }
+
+  /**
+   * the whole image path of an attachment as run by the export, from the file to the inline image data
+   */
+  @Benchmark
+  public String[] imageSrc()
+    throws IOException
+  {
+    return application.createImageSrcs(imageFile.getName(), imageFile, null, mimetype);
+  }
+
+  @Benchmark
+  public BufferedImage decode()
+    throws IOException
+  {
+    return ImageIO.read(imageFile);
+  }
+
+  /**
+   * a photo like image with gradients and noise, so the encoders can not compress it trivially
+   */
+  private static BufferedImage createImage(int width, int height)
+  {
+    Random random = new Random(42);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for(int y = 0; y < height; y++)
+    {
+      for(int x = 0; x < width; x++)
+      {
+        int r = (x * 255 / width + random.nextInt(16)) & 0xff;
+        int g = (y * 255 / height + random.nextInt(16)) & 0xff;
+        int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xff;
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+    return image;
+  }
+}
@@ -0,0 +1,150 @@
+package msgexport;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the FreeMarker rendering of ioback.ftl, compared to the built-in {@link HtmlRenderer} and the data rows of
+ * {@link MessageDataWriter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark
+{
+  @Param({"1000", "100000"})
+  private int messageCount;
+
+  private final Contact contact = new Contact("Jane Appleseed");
+  private List<Message> messages;
+  private Template template;
+  private final HtmlRenderer htmlRenderer = new HtmlRenderer();
+
+  @Setup(Level.Trial)
+  public void setup()
+    throws IOException
+  {
+    template = MsgExportApplication.createConfiguration().getTemplate("ioback.ftl");
+    messages = createMessages(messageCount);
+  }
+
+  @Benchmark
+  public long render()
+    throws IOException, TemplateException
+  {
+    CountingWriter writer = new CountingWriter();
+    template.process(new MsgExportApplication.ContactMessages(contact, messages), writer);
+    return writer.count;
+  }
+
+  @Benchmark
+  public long renderBuiltin()
+    throws IOException
+  {
+    CountingWriter writer = new CountingWriter();
+    htmlRenderer.render(new MsgExportApplication.ContactMessages(contact, messages), writer);
+    return writer.count;
+  }
+
+  @Benchmark
+  public long writeNdjson()
+    throws IOException
+  {
+    return writeData(DataFormat.NDJSON);
+  }
+
+  @Benchmark
+  public long writeCsv()
+    throws IOException
+  {
+    return writeData(DataFormat.CSV);
+  }
+
+  private long writeData(DataFormat format)
+    throws IOException
+  {
+    CountingWriter writer = new CountingWriter();
+    try (MessageDataWriter dataWriter = new MessageDataWriter(writer, format))
+    {
+      for(Message message : messages)
+      {
+        dataWriter.write(contact.getName(), message);
+      }
+    }
+    return writer.count;
+  }
+
+  static List<Message> createMessages(int messageCount)
+  {
+    Random random = new Random(42);
+    List<Message> messages = new ArrayList<>(messageCount);
+    long date = 500000000L;
+    for(int i = 0; i < messageCount; i++)
+    {
+      date += random.nextInt(3600);
+      String uniqueID = i % 3 == 0 ? "jane@example.com" : "+491711234567";
+      String text = "message " + i + " with some typical text length of a short chat message";
+      messages.add(new Message(uniqueID, MessageBuilder.getDate(date), random.nextInt(2), text, uniqueID.startsWith("+")));
+    }
+    return messages;
+  }
+
+  /**
+   * discards the output but counts the characters
+   */
+  static class CountingWriter
+    extends Writer
+  {
+    long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len)
+    {
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len)
+    {
+      count += len;
+    }
+
+    @Override
+    public void write(int c)
+    {
+      count++;
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package msgexport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark
+{
+  private final String path = "MediaDomain-Library/SMS/Attachments/4f/15/9A3C5E2B-1D2F-4E6A-8B7C-0D1E2F3A4B5C/IMG_0042.JPG";
+  private final byte[] digest = {-38, 57, -93, -18, 94, 107, 75, 13, 50, 85, -65, -17, -107, 96, 24, -112, -81, -40, 7, 9};
+
+  @Benchmark
+  public String sha1()
+  {
+    return Util.sha1(path);
+  }
+
+  @Benchmark
+  public String bytesToHex()
+  {
+    return Util.bytesToHex(digest);
+  }
+
+  @Benchmark
+  public String createFilename()
+  {
+    return Util.createFilename(Util.sha1(path));
+  }
+}
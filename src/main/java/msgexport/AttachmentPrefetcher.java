@@ -0,0 +1,194 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Read-ahead of attachment files into memory. The files of a batch are read in path order by a background thread,
+ * so the prefix directories of the backup are read sequentially instead of in message order. The read files are held
+ * in a buffer pool of limited size until a worker takes them, the reader waits while the pool is full.
+ * A worker never waits for a file which is not read yet, it takes it from the queue and reads the file itself.
+ */
+public class AttachmentPrefetcher
+  implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentPrefetcher.class);
+
+  // the pool size in KiB
+  private final int poolSize;
+  private final Semaphore pool;
+  // one reader keeps the reads sequential
+  private final ExecutorService reader = Executors.newSingleThreadExecutor();
+  private final Map<File, Buffer> buffers = new ConcurrentHashMap<>();
+
+  /**
+   * @param poolSize the maximal size of the read files in memory in bytes
+   */
+  public AttachmentPrefetcher(long poolSize)
+  {
+    this.poolSize = (int) Math.min(Math.max(poolSize / 1024, 1), Integer.MAX_VALUE);
+    this.pool = new Semaphore(this.poolSize);
+  }
+
+  /**
+   * Read a batch of files ahead, in path order. Files which are already queued are skipped.
+   *
+   * @param files the files, eg. the images of the messages of a contact
+   */
+  public void prefetch(Collection<File> files)
+  {
+    List<Buffer> batch = new ArrayList<>();
+    for(File file : new TreeSet<>(files))
+    {
+      Buffer buffer = new Buffer(file);
+      if(buffers.putIfAbsent(file, buffer) == null)
+      {
+        batch.add(buffer);
+      }
+    }
+
+    if(!batch.isEmpty())
+    {
+      reader.execute(() ->
+      {
+        for(Buffer buffer : batch)
+        {
+          buffer.read();
+        }
+      });
+    }
+  }
+
+  /**
+   * Take a file from the pool, waits if the file is being read.
+   *
+   * @param file the file
+   *
+   * @return the content of the file or null if the file was not read ahead, the caller reads the file itself
+   */
+  public byte[] take(File file)
+    throws InterruptedIOException
+  {
+    Buffer buffer = buffers.remove(file);
+    return buffer != null ? buffer.take() : null;
+  }
+
+  @Override
+  public void close()
+  {
+    reader.shutdownNow();
+    buffers.clear();
+  }
+
+  private class Buffer
+  {
+    private final File file;
+    private int permits;
+    private boolean reading;
+    private boolean taken;
+    private byte[] data;
+
+    private Buffer(File file)
+    {
+      this.file = file;
+    }
+
+    private void read()
+    {
+      int filePermits = (int) Math.min((file.length() + 1023) / 1024, Integer.MAX_VALUE);
+      if(filePermits > poolSize)
+      {
+        // larger than the pool, read by the worker
+        return;
+      }
+      try
+      {
+        pool.acquire(filePermits);
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      synchronized(this)
+      {
+        if(taken)
+        {
+          pool.release(filePermits);
+          return;
+        }
+        reading = true;
+      }
+
+      byte[] fileData = null;
+      long start = ExportMetrics.start();
+      try
+      {
+        fileData = Files.readAllBytes(file.toPath());
+        ExportMetrics.stop("attachments.prefetch", start);
+      }
+      catch(IOException e)
+      {
+        LOGGER.debug(String.format("can not prefetch %s", file), e);
+      }
+
+      synchronized(this)
+      {
+        reading = false;
+        if(fileData != null)
+        {
+          data = fileData;
+          permits = filePermits;
+        }
+        else
+        {
+          pool.release(filePermits);
+        }
+        notifyAll();
+      }
+    }
+
+    private synchronized byte[] take()
+      throws InterruptedIOException
+    {
+      taken = true;
+      try
+      {
+        while(reading)
+        {
+          wait();
+        }
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(String.format("interrupted while reading %s", file));
+      }
+
+      byte[] fileData = data;
+      if(fileData != null)
+      {
+        data = null;
+        pool.release(permits);
+        ExportMetrics.count("attachments.prefetched", 1);
+      }
+      return fileData;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.core.Codes;
+import org.sqlite.core.DB;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared connections to the SQLite databases of a backup.
+ * The backup is never modified, so the databases are opened read-only and immutable, without locking and journal
+ * checks. Closed connections are kept open for the next reader, so the page cache stays warm for all contacts.
+ * Optionally every database is copied once into memory.
+ */
+public class BackupDatabases
+  implements AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(BackupDatabases.class);
+
+  private static final AtomicInteger MEMORY_DB_ID = new AtomicInteger();
+
+  private final long mmapSize;
+  private final int cacheSize;
+  private final boolean inMemory;
+  private final Map<File, Database> databases = new ConcurrentHashMap<>();
+
+  /**
+   * @param mmapSize  the memory map size in bytes, 0 to disable memory mapped I/O
+   * @param cacheSize the page cache size of every connection in bytes
+   * @param inMemory  true to copy the databases into memory
+   */
+  public BackupDatabases(long mmapSize, long cacheSize, boolean inMemory)
+  {
+    this.mmapSize = mmapSize;
+    // negative cache sizes are in KiB
+    this.cacheSize = (int) -Math.max(cacheSize / 1024, 1);
+    this.inMemory = inMemory;
+  }
+
+  /**
+   * Get a connection to a database of the backup. The connection must be closed after use and returns to the pool.
+   *
+   * @param dbFile the database file
+   *
+   * @return the read-only connection
+   */
+  public Connection getConnection(File dbFile)
+    throws SQLException
+  {
+    Database database = databases.computeIfAbsent(dbFile.getAbsoluteFile(), Database::new);
+    return database.acquire();
+  }
+
+  @Override
+  public void close()
+  {
+    for(Database database : databases.values())
+    {
+      database.close();
+    }
+    databases.clear();
+  }
+
+  private SQLiteConfig createConfig()
+  {
+    SQLiteConfig config = new SQLiteConfig();
+    config.setReadOnly(true);
+    config.setCacheSize(cacheSize);
+    config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(mmapSize));
+    return config;
+  }
+
+  private class Database
+  {
+    private final File dbFile;
+    private final String url;
+    private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+    // keeps the in-memory copy alive
+    private Connection memoryConnection;
+
+    private Database(File dbFile)
+    {
+      this.dbFile = dbFile;
+      if(inMemory)
+      {
+        this.url = String.format("jdbc:sqlite:file:msgexport-%d?mode=memory&cache=shared", MEMORY_DB_ID.incrementAndGet());
+      }
+      else
+      {
+        // immutable databases are read without any locks or change detection
+        this.url = String.format("jdbc:sqlite:%s?immutable=1", dbFile.toURI());
+      }
+    }
+
+    private Connection acquire()
+      throws SQLException
+    {
+      Connection connection = idleConnections.poll();
+      if(connection == null)
+      {
+        connection = open();
+      }
+
+      Connection pooledConnection = connection;
+      InvocationHandler handler = new InvocationHandler()
+      {
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+          throws Throwable
+        {
+          switch(method.getName())
+          {
+            case "close":
+              if(!closed)
+              {
+                closed = true;
+                idleConnections.add(pooledConnection);
+              }
+              return null;
+            case "isClosed":
+              return closed || pooledConnection.isClosed();
+            default:
+              try
+              {
+                return method.invoke(pooledConnection, args);
+              }
+              catch(InvocationTargetException e)
+              {
+                throw e.getCause();
+              }
+          }
+        }
+      };
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+
+    private synchronized Connection open()
+      throws SQLException
+    {
+      if(inMemory && memoryConnection == null)
+      {
+        long start = ExportMetrics.start();
+        memoryConnection = new SQLiteConfig().createConnection(url);
+        // the backup API takes the path as is, the restore statement of the driver can not quote a path with quotes
+        int result = ((SQLiteConnection) memoryConnection).getDatabase().restore("main", dbFile.getAbsolutePath(), null);
+        if(result != Codes.SQLITE_OK)
+        {
+          throw DB.newSQLException(result, String.format("can not load %s into memory", dbFile));
+        }
+        ExportMetrics.stop("db.load", start);
+        LOGGER.info(String.format("loaded %s into memory", dbFile.getName()));
+      }
+
+      Connection connection = createConfig().createConnection(url);
+      connections.add(connection);
+      return connection;
+    }
+
+    private synchronized void close()
+    {
+      if(memoryConnection != null)
+      {
+        connections.add(memoryConnection);
+      }
+      for(Connection connection : connections)
+      {
+        try
+        {
+          connection.close();
+        }
+        catch(SQLException e)
+        {
+          LOGGER.warn(String.format("can not close %s", dbFile.getName()), e);
+        }
+      }
+      connections.clear();
+      idleConnections.clear();
+      memoryConnection = null;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the files of an iOS backup.
+ * The index is loaded once from the Manifest.db of the backup, so a file lookup needs no digest and no file system
+ * access. Backups without a Manifest.db are looked up by the sha1 of the domain and path.
+ */
+public class BackupIndex
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(BackupIndex.class);
+
+  public static final String HOME_DOMAIN = "HomeDomain";
+  public static final String MEDIA_DOMAIN = "MediaDomain";
+
+  private static final String MANIFEST_DB = "Manifest.db";
+
+  private final File backupDir;
+  private final BackupDatabases databases;
+  // file ID by domain and relative path, null without manifest
+  private final Map<String, String> files;
+  // file ID by relative path of any domain, null without manifest
+  private final Map<String, String> relativePaths;
+
+  private BackupIndex(File backupDir, BackupDatabases databases, Map<String, String> files, Map<String, String> relativePaths)
+  {
+    this.backupDir = backupDir;
+    this.databases = databases;
+    this.files = files;
+    this.relativePaths = relativePaths;
+  }
+
+  /**
+   * @param backupDir the backup directory
+   * @param databases the connections to the databases of the backup
+   */
+  public static BackupIndex load(File backupDir, BackupDatabases databases)
+    throws SQLException
+  {
+    File manifestDB = new File(backupDir, MANIFEST_DB);
+    if(manifestDB.isFile() && manifestDB.canRead())
+    {
+      Map<String, String> files = new HashMap<>();
+      Map<String, String> relativePaths = new HashMap<>();
+      try (Connection connection = databases.getConnection(manifestDB))
+      {
+        try (Statement statement = connection.createStatement())
+        {
+          // flags 1 are regular files
+          String sql = "SELECT fileID, domain, relativePath FROM Files WHERE flags = 1";
+          try (ResultSet resultSet = statement.executeQuery(sql))
+          {
+            while(resultSet.next())
+            {
+              String fileID = resultSet.getString("fileID");
+              String domain = resultSet.getString("domain");
+              String relativePath = resultSet.getString("relativePath");
+
+              files.put(domain + "-" + relativePath, fileID);
+              relativePaths.putIfAbsent(relativePath, fileID);
+            }
+          }
+        }
+      }
+      LOGGER.info(String.format("read %d files from %s", files.size(), MANIFEST_DB));
+
+      return new BackupIndex(backupDir, databases, files, relativePaths);
+    }
+    else
+    {
+      LOGGER.info(String.format("no %s in backup, lookup files by name", MANIFEST_DB));
+
+      return new BackupIndex(backupDir, databases, null, null);
+    }
+  }
+
+  public File getBackupDir()
+  {
+    return backupDir;
+  }
+
+  /**
+   * Get a shared read-only connection to a database of the backup. The connection must be closed after use.
+   *
+   * @param dbFile the database file, eg. of {@link #getFile(String, String)}
+   *
+   * @return the connection
+   */
+  public Connection getConnection(File dbFile)
+    throws SQLException
+  {
+    return databases.getConnection(dbFile);
+  }
+
+  /**
+   * Lookup a file of the backup.
+   *
+   * @param domain       the backup domain, eg. {@link #HOME_DOMAIN}
+   * @param relativePath the path relative to the domain
+   *
+   * @return the file or null if the backup has no such file
+   */
+  public File getFile(String domain, String relativePath)
+  {
+    if(files != null)
+    {
+      String fileID = files.get(domain + "-" + relativePath);
+      return fileID != null ? new File(backupDir, Util.createFilename(fileID)) : null;
+    }
+    else
+    {
+      File file = new File(backupDir, Util.createFilename(Util.sha1(domain + "-" + relativePath)));
+      return file.exists() && file.isFile() && file.canRead() ? file : null;
+    }
+  }
+
+  /**
+   * Lookup the file of a message attachment. The attachment is searched in the media domain and then in any other
+   * domain of the backup.
+   *
+   * @param attachmentFilename the filename of the attachment, eg. {@code ~/Library/SMS/Attachments/...}
+   *
+   * @return the file or null if the backup has no such file
+   */
+  public File getAttachmentFile(String attachmentFilename)
+  {
+    String relativePath = attachmentFilename;
+    if(relativePath.startsWith("~/"))
+    {
+      relativePath = relativePath.substring(2);
+    }
+    else if(relativePath.startsWith("/var/mobile/"))
+    {
+      relativePath = relativePath.substring("/var/mobile/".length());
+    }
+
+    File file = getFile(MEDIA_DOMAIN, relativePath);
+    if(file == null && relativePaths != null)
+    {
+      String fileID = relativePaths.get(relativePath);
+      file = fileID != null ? new File(backupDir, Util.createFilename(fileID)) : null;
+    }
+
+    return file;
+  }
+}
@@ -1,5 +1,6 @@
 package msgexport;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -8,7 +9,8 @@ public class Contact
   implements Comparable<Contact>
 {
   private final String name;
-  private final Set<Long> phones = new HashSet<>();
+  // sorted and without duplicates, contacts have only a few phone numbers
+  private long[] phones = new long[0];
   private final Set<String> emails = new HashSet<>();
 
   public Contact(String name)
@@ -16,9 +18,18 @@ public class Contact
     this.name = name;
   }
 
-  public void addPhone(Long phone)
+  public void addPhone(long phone)
   {
-    phones.add(phone);
+    int index = Arrays.binarySearch(phones, phone);
+    if(index < 0)
+    {
+      int insert = -index - 1;
+      long[] newPhones = new long[phones.length + 1];
+      System.arraycopy(phones, 0, newPhones, 0, insert);
+      newPhones[insert] = phone;
+      System.arraycopy(phones, insert, newPhones, insert + 1, phones.length - insert);
+      phones = newPhones;
+    }
   }
 
   public void addEmail(String email)
@@ -31,9 +42,12 @@ public class Contact
     return name;
   }
 
-  public Set<Long> getPhones()
+  /**
+   * @return the sorted phone numbers
+   */
+  public long[] getPhones()
   {
-    return phones;
+    return phones.clone();
   }
 
   public Set<String> getEmails()
@@ -41,6 +55,19 @@ public class Contact
     return emails;
   }
 
+  /**
+   * @return the message handles of the contact, the emails and the phone numbers with '+' prefix
+   */
+  public Set<String> getHandles()
+  {
+    Set<String> handles = new HashSet<>(emails);
+    for(long phone : phones)
+    {
+      handles.add("+" + phone);
+    }
+    return handles;
+  }
+
   @Override
   public boolean equals(Object o)
   {
@@ -54,14 +81,14 @@ public class Contact
     }
     Contact contact = (Contact) o;
     return Objects.equals(name, contact.name) &&
-           Objects.equals(phones, contact.phones) &&
+           Arrays.equals(phones, contact.phones) &&
            Objects.equals(emails, contact.emails);
   }
 
   @Override
   public int hashCode()
   {
-    return Objects.hash(name, phones, emails);
+    return Objects.hash(name, Arrays.hashCode(phones), emails);
   }
 
   @Override
@@ -75,7 +102,7 @@ public class Contact
   {
     return "Contact{" +
            "name='" + name + '\'' +
-           ", phones=" + phones +
+           ", phones=" + Arrays.toString(phones) +
            ", emails=" + emails +
            '}';
   }
@@ -5,12 +5,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.LongConsumer;
@@ -18,26 +18,42 @@ import java.util.function.LongConsumer;
 public class ContactBuilder
 {
   private static final Logger LOGGER = LoggerFactory.getLogger(ContactBuilder.class);
-  private static final String CONTACT_DB = Util.sha1("HomeDomain-Library/AddressBook/AddressBook.sqlitedb");
+  private static final String CONTACT_DB = "Library/AddressBook/AddressBook.sqlitedb";
+
+  static final long INVALID_PHONE = -1;
+  // an empty number, phone numbers are never negative
+  private static final long NO_DIGITS = -2;
 
   private final String countryPhoneCode;
   private final String areaPhoneCode;
 
+  /**
+   * @param countryPhoneCode the country code, eg. 49 or +49
+   * @param areaPhoneCode    the area code, eg. 171
+   */
   public ContactBuilder(String countryPhoneCode, String areaPhoneCode)
   {
-    this.countryPhoneCode = countryPhoneCode;
-    this.areaPhoneCode = areaPhoneCode;
+    this.countryPhoneCode = stripPlus(countryPhoneCode);
+    this.areaPhoneCode = stripPlus(areaPhoneCode);
+  }
+
+  /**
+   * @return the phone code without a leading '+', the digits of the codes are appended to the numbers
+   */
+  private static String stripPlus(String phoneCode)
+  {
+    return phoneCode.startsWith("+") ? phoneCode.substring(1) : phoneCode;
   }
 
-  public Set<Contact> readContacts(File backupDir)
+  public Set<Contact> readContacts(BackupIndex backup)
     throws SQLException
   {
-    File contactBackupDB = new File(backupDir, Util.createFilename(CONTACT_DB));
-    if(contactBackupDB.exists() && contactBackupDB.isFile() && contactBackupDB.canRead())
+    File contactBackupDB = backup.getFile(BackupIndex.HOME_DOMAIN, CONTACT_DB);
+    if(contactBackupDB != null)
     {
       Map<String, Contact> contactMap = new HashMap<>();
 
-      try (Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", contactBackupDB.getAbsolutePath())))
+      try (Connection connection = backup.getConnection(contactBackupDB))
       {
         try (Statement statement = connection.createStatement())
         {
@@ -82,10 +98,40 @@ public class ContactBuilder
     }
     else
     {
-      throw new IllegalArgumentException(String.format("can not read from %s", contactBackupDB.getAbsolutePath()));
+      throw new IllegalArgumentException(String.format("can not read from %s", CONTACT_DB));
     }
   }
 
+  /**
+   * Read the contacts of several backups, contacts of the same name are merged with all their phone numbers and emails.
+   */
+  public Set<Contact> readContacts(List<BackupIndex> backups)
+    throws SQLException
+  {
+    if(backups.size() == 1)
+    {
+      return readContacts(backups.get(0));
+    }
+
+    Map<String, Contact> contactMap = new HashMap<>();
+    for(BackupIndex backup : backups)
+    {
+      for(Contact backupContact : readContacts(backup))
+      {
+        Contact contact = contactMap.computeIfAbsent(backupContact.getName(), Contact::new);
+        for(long phone : backupContact.getPhones())
+        {
+          contact.addPhone(phone);
+        }
+        for(String email : backupContact.getEmails())
+        {
+          contact.addEmail(email);
+        }
+      }
+    }
+    return new HashSet<>(contactMap.values());
+  }
+
   private static String createFullname(String first, String last)
   {
     if(first != null && !first.isEmpty() && last != null && !last.isEmpty())
@@ -106,48 +152,94 @@ public class ContactBuilder
     }
   }
 
-  private void addPhoneNumber(String value, LongConsumer applyPhoneNumberFunction)
+  void addPhoneNumber(String value, LongConsumer applyPhoneNumberFunction)
   {
-    value = value.trim();
-
-    if(value.startsWith("+"))
+    long phone = parsePhoneNumber(value);
+    if(phone != INVALID_PHONE)
     {
-      value = value.substring(1);
+      applyPhoneNumberFunction.accept(phone);
     }
-    else if(!value.isEmpty() && !value.startsWith("0") && Character.isDigit(value.charAt(0)))
+    else if(LOGGER.isDebugEnabled())
     {
-      // local number
-      value = areaPhoneCode + value;
+      LOGGER.debug(String.format("can not parse '%s' as phone number", value));
     }
+  }
 
-    if(value.startsWith("0"))
+  /**
+   * Normalize a phone number in a single pass without intermediate strings.
+   * A '+' prefix is dropped, local numbers get the area code and a leading '0' is replaced by the country code.
+   * Spaces, no-break spaces, '-' and '/' are ignored.
+   *
+   * @return the phone number as digits or {@link #INVALID_PHONE}
+   */
+  long parsePhoneNumber(CharSequence value)
+  {
+    // trim
+    int start = 0;
+    int end = value.length();
+    while(start < end && value.charAt(start) <= ' ')
+    {
+      start++;
+    }
+    while(end > start && value.charAt(end - 1) <= ' ')
     {
-      // prefix county number
-      value = countryPhoneCode + value.substring(1);
+      end--;
     }
 
-    value = cleanup(value, " ");
-    value = cleanup(value, "\u00a0");
-    value = cleanup(value, "-");
-    value = cleanup(value, "/");
+    String areaCode = "";
+    if(start < end && value.charAt(start) == '+')
+    {
+      start++;
+    }
+    else if(start < end && value.charAt(start) != '0' && Character.isDigit(value.charAt(start)))
+    {
+      // local number
+      areaCode = areaPhoneCode;
+    }
 
-    try
+    long phone = NO_DIGITS;
+    if(!areaCode.isEmpty() ? areaCode.charAt(0) == '0' : start < end && value.charAt(start) == '0')
     {
-      applyPhoneNumberFunction.accept(Long.parseLong(value));
+      // replace the leading '0' of the area code or the number by the country code
+      phone = appendDigits(phone, countryPhoneCode, 0, countryPhoneCode.length());
+      if(areaCode.isEmpty())
+      {
+        start++;
+      }
+      else
+      {
+        phone = appendDigits(phone, areaCode, 1, areaCode.length());
+      }
     }
-    catch(NumberFormatException e)
+    else
     {
-      LOGGER.debug(String.format("can not parse '%s' as phone number", value), e);
+      phone = appendDigits(phone, areaCode, 0, areaCode.length());
     }
+    phone = appendDigits(phone, value, start, end);
+
+    return phone != NO_DIGITS ? phone : INVALID_PHONE;
   }
 
-  private static String cleanup(String value, String s)
+  private static long appendDigits(long phone, CharSequence value, int start, int end)
   {
-    while(value.contains(s))
+    for(int i = start; i < end && phone != INVALID_PHONE; i++)
     {
-      value = value.replace(s, "");
+      char c = value.charAt(i);
+      if(c != ' ' && c != '\u00a0' && c != '-' && c != '/')
+      {
+        int digit = Character.digit(c, 10);
+        long current = phone != NO_DIGITS ? phone : 0;
+        if(digit < 0 || current > (Long.MAX_VALUE - digit) / 10)
+        {
+          phone = INVALID_PHONE;
+        }
+        else
+        {
+          phone = current * 10 + digit;
+        }
+      }
     }
 
-    return value;
+    return phone;
   }
 }
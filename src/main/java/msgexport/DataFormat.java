@@ -0,0 +1,34 @@
+package msgexport;
+
+/**
+ * Formats of the data export of messages as rows.
+ */
+public enum DataFormat
+{
+  NDJSON("ndjson", false),
+  CSV("csv", false),
+  // a search database, always one file for all contacts
+  SQLITE("sqlite", true);
+
+  private final String extension;
+  private final boolean combined;
+
+  DataFormat(String extension, boolean combined)
+  {
+    this.extension = extension;
+    this.combined = combined;
+  }
+
+  public String getExtension()
+  {
+    return extension;
+  }
+
+  /**
+   * @return true if the rows of all contacts are always written to one file
+   */
+  public boolean isCombined()
+  {
+    return combined;
+  }
+}
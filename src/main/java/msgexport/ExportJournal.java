@@ -0,0 +1,207 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Journal of the finished work of an export, the exported contacts and the stored attachments. An interrupted export
+ * is resumed from the journal and only does the remaining work. The journal is appended line by line, a line torn by
+ * a crash is ignored. It is deleted when the export completes.
+ */
+public class ExportJournal
+  implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExportJournal.class);
+
+  public static final String JOURNAL_FILE = ".msgexport-journal";
+  // suffix of the temporary files, which are renamed to the export files when they are complete
+  public static final String TMP_SUFFIX = ".msgexport-tmp";
+
+  private static final String CONTACT = "C";
+  private static final String ATTACHMENT = "A";
+
+  private final File journalFile;
+  private final Set<String> contacts = ConcurrentHashMap.newKeySet();
+  private final Map<String, String> attachments = new ConcurrentHashMap<>();
+  private final FileChannel channel;
+
+  private ExportJournal(File journalFile)
+    throws IOException
+  {
+    this.journalFile = journalFile;
+    if(journalFile.exists())
+    {
+      read();
+    }
+    channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Open the journal of an export directory, to resume an interrupted export or to start a new journal.
+   *
+   * @param destDir the export directory
+   */
+  public static ExportJournal open(File destDir)
+    throws IOException
+  {
+    ExportJournal journal = new ExportJournal(new File(destDir, JOURNAL_FILE));
+    LOGGER.info(String.format("resume export, %d contacts and %d attachments are done", journal.contacts.size(), journal.attachments.size()));
+    return journal;
+  }
+
+  /**
+   * Delete the journal of an earlier export, an export without journal does not resume from it.
+   *
+   * @param destDir the export directory
+   */
+  public static void discard(File destDir)
+    throws IOException
+  {
+    Files.deleteIfExists(new File(destDir, JOURNAL_FILE).toPath());
+  }
+
+  /**
+   * Delete the temporary files left by an interrupted export.
+   *
+   * @param dir the export or media directory
+   */
+  public static void deleteTmpFiles(File dir)
+  {
+    File[] tmpFiles = dir.listFiles((d, name) -> name.endsWith(TMP_SUFFIX));
+    if(tmpFiles != null)
+    {
+      for(File tmpFile : tmpFiles)
+      {
+        if(!tmpFile.delete())
+        {
+          LOGGER.warn(String.format("can not delete %s", tmpFile));
+        }
+      }
+    }
+  }
+
+  public boolean isExported(Contact contact)
+  {
+    return contacts.contains(contact.getName());
+  }
+
+  /**
+   * Record an exported contact, the record is forced to the disk.
+   */
+  public synchronized void exported(Contact contact)
+    throws IOException
+  {
+    contacts.add(contact.getName());
+    append(CONTACT + "\t" + encode(contact.getName()));
+    channel.force(false);
+  }
+
+  /**
+   * @param key the key of the attachment, eg. the backup filename and the export width
+   *
+   * @return the source of the stored attachment or null
+   */
+  public String getAttachment(String key)
+  {
+    return attachments.get(key);
+  }
+
+  /**
+   * Record a stored attachment. The record is not forced, after a system crash the attachment is only processed again.
+   *
+   * @param key the key of the attachment
+   * @param src the source of the attachment relative to the export directory
+   */
+  public synchronized void attachment(String key, String src)
+    throws IOException
+  {
+    attachments.put(key, src);
+    append(ATTACHMENT + "\t" + encode(key) + "\t" + encode(src));
+  }
+
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    channel.close();
+  }
+
+  /**
+   * Close and delete the journal of a completed export.
+   */
+  public void delete()
+    throws IOException
+  {
+    close();
+    Files.deleteIfExists(journalFile.toPath());
+  }
+
+  private void append(String line)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    while(buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+  }
+
+  private void read()
+    throws IOException
+  {
+    String journal = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+    // the last line is incomplete if it has no line end
+    int end = journal.lastIndexOf('\n');
+    for(String line : journal.substring(0, end + 1).split("\n"))
+    {
+      String[] fields = line.split("\t");
+      if(fields.length == 2 && CONTACT.equals(fields[0]))
+      {
+        contacts.add(decode(fields[1]));
+      }
+      else if(fields.length == 3 && ATTACHMENT.equals(fields[0]))
+      {
+        attachments.put(decode(fields[1]), decode(fields[2]));
+      }
+    }
+  }
+
+  private static String encode(String value)
+  {
+    try
+    {
+      return URLEncoder.encode(value, "UTF-8");
+    }
+    catch(UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String value)
+  {
+    try
+    {
+      return URLDecoder.decode(value, "UTF-8");
+    }
+    catch(UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+}
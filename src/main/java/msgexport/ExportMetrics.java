@@ -0,0 +1,189 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of the export stages. The metrics of a run are written as JSON report to the export directory
+ * and optionally emitted as JFR events.
+ * <p>
+ * usage: {@code long start = ExportMetrics.start(); ... ExportMetrics.stop("stage", start);}
+ */
+public class ExportMetrics
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExportMetrics.class);
+
+  public static final String REPORT_FILE = "msgexport-report.json";
+
+  // latency buckets of 1, 2, 4, ... ms up to about 18 hours
+  private static final int HISTOGRAM_BUCKETS = 27;
+
+  private static volatile ExportMetrics metrics = new ExportMetrics(false);
+
+  private final boolean jfr;
+  private final long started = System.currentTimeMillis();
+  private final long startedNanos = System.nanoTime();
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLongArray> histograms = new ConcurrentHashMap<>();
+
+  private ExportMetrics(boolean jfr)
+  {
+    this.jfr = jfr;
+  }
+
+  /**
+   * Start the metrics of a new run.
+   *
+   * @param jfr true to emit every stopped timer as JFR event
+   */
+  public static void reset(boolean jfr)
+  {
+    metrics = new ExportMetrics(jfr);
+  }
+
+  public static long start()
+  {
+    return System.nanoTime();
+  }
+
+  /**
+   * Record the time of a stage.
+   *
+   * @param stage the name of the stage
+   * @param start the start time of {@link #start()}
+   */
+  public static void stop(String stage, long start)
+  {
+    record(stage, System.nanoTime() - start);
+  }
+
+  public static void count(String counter, long value)
+  {
+    metrics.counters.computeIfAbsent(counter, c -> new LongAdder()).add(value);
+  }
+
+  /**
+   * Record the time of a stage into a latency histogram and its timer.
+   */
+  public static void histogram(String stage, long start)
+  {
+    long nanos = System.nanoTime() - start;
+    record(stage, nanos);
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), HISTOGRAM_BUCKETS - 1);
+    metrics.histograms.computeIfAbsent(stage, h -> new AtomicLongArray(HISTOGRAM_BUCKETS)).incrementAndGet(bucket);
+  }
+
+  private static void record(String stage, long nanos)
+  {
+    ExportMetrics current = metrics;
+    current.timers.computeIfAbsent(stage, s -> new Timer()).record(nanos);
+    if(current.jfr)
+    {
+      StageEvent.emit(stage, nanos);
+    }
+  }
+
+  /**
+   * Write the metrics of the run as JSON report.
+   *
+   * @param destDir the export directory
+   */
+  public static void writeReport(File destDir)
+  {
+    ExportMetrics current = metrics;
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"started\": \"").append(dateFormat.format(new Date(current.started))).append("\",\n");
+    json.append("  \"durationMs\": ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.startedNanos)).append(",\n");
+
+    json.append("  \"timers\": {");
+    String sep = "\n";
+    for(Map.Entry<String, Timer> entry : new TreeMap<>(current.timers).entrySet())
+    {
+      Timer timer = entry.getValue();
+      json.append(sep).append("    \"").append(entry.getKey()).append("\": {")
+        .append("\"count\": ").append(timer.count.sum())
+        .append(", \"totalMs\": ").append(TimeUnit.NANOSECONDS.toMillis(timer.nanos.sum()))
+        .append(", \"maxMs\": ").append(TimeUnit.NANOSECONDS.toMillis(timer.max.get()))
+        .append('}');
+      sep = ",\n";
+    }
+    json.append("\n  },\n");
+
+    json.append("  \"counters\": {");
+    sep = "\n";
+    for(Map.Entry<String, LongAdder> entry : new TreeMap<>(current.counters).entrySet())
+    {
+      json.append(sep).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().sum());
+      sep = ",\n";
+    }
+    json.append("\n  },\n");
+
+    json.append("  \"histograms\": {");
+    sep = "\n";
+    for(Map.Entry<String, AtomicLongArray> entry : new TreeMap<>(current.histograms).entrySet())
+    {
+      // bucket n counts the latencies below 2^n ms
+      json.append(sep).append("    \"").append(entry.getKey()).append("\": {");
+      String bucketSep = "";
+      AtomicLongArray buckets = entry.getValue();
+      for(int bucket = 0; bucket < buckets.length(); bucket++)
+      {
+        if(buckets.get(bucket) > 0)
+        {
+          json.append(bucketSep).append("\"<").append(1L << bucket).append("ms\": ").append(buckets.get(bucket));
+          bucketSep = ", ";
+        }
+      }
+      json.append('}');
+      sep = ",\n";
+    }
+    json.append("\n  }\n");
+    json.append("}\n");
+
+    try (Writer writer = Files.newBufferedWriter(new File(destDir, REPORT_FILE).toPath(), StandardCharsets.UTF_8))
+    {
+      writer.write(json.toString());
+    }
+    catch(IOException e)
+    {
+      LOGGER.warn(String.format("can not write report %s", REPORT_FILE), e);
+    }
+  }
+
+  private static class Timer
+  {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    private void record(long value)
+    {
+      count.increment();
+      nanos.add(value);
+      max.accumulate(value);
+    }
+  }
+}
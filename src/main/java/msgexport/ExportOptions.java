@@ -0,0 +1,277 @@
+package msgexport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The command line parameters of the export.
+ * Positional parameters are kept in order, options are given as {@code --name} or {@code --name=value}.
+ */
+public class ExportOptions
+{
+  public static final String USAGE = "backup-dir country-code area-code [export-dir] [--single-pass] [--threads=n] [--image-cache=dir] [--image-cache-size=mb] [--incremental] [--streaming] [--media] [--subsample] [--page-size=n] [--page-monthly] [--jfr] [--mmap-size=mb] [--cache-size=mb] [--in-memory] [--partitions=n] [--format=html|ndjson|csv|sqlite] [--combined] [--freemarker] [--template=file] [--thumbnails] [--attachments] [--resume] [--image-memory=mb] [--prefetch=mb] [--merge=dir[:dir...]]";
+
+  // the options of the usage, a misspelled option is rejected instead of ignored
+  private static final Set<String> NAMES = new HashSet<>(Arrays.asList(
+    "single-pass", "threads", "image-cache", "image-cache-size", "incremental", "streaming", "media", "subsample",
+    "page-size", "page-monthly", "jfr", "mmap-size", "cache-size", "in-memory", "partitions", "format", "combined",
+    "freemarker", "template", "thumbnails", "attachments", "resume", "image-memory", "prefetch", "merge"));
+
+  private final List<String> parameters = new ArrayList<>();
+  private final Map<String, String> options = new HashMap<>();
+
+  public ExportOptions(String[] args)
+  {
+    for(String arg : args)
+    {
+      if(arg.startsWith("--"))
+      {
+        int index = arg.indexOf('=');
+        String name = index > 0 ? arg.substring(2, index) : arg.substring(2);
+        if(!NAMES.contains(name))
+        {
+          throw new IllegalArgumentException(String.format("unknown option --%s. usage: %s", name, USAGE));
+        }
+        options.put(name, index > 0 ? arg.substring(index + 1) : "");
+      }
+      else
+      {
+        parameters.add(arg);
+      }
+    }
+  }
+
+  public List<String> getParameters()
+  {
+    return parameters;
+  }
+
+  public String getParameter(int index, String defaultValue)
+  {
+    return index < parameters.size() ? parameters.get(index) : defaultValue;
+  }
+
+  public String getOption(String name, String defaultValue)
+  {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  public int getIntOption(String name, int defaultValue)
+  {
+    String value = options.get(name);
+    if(value == null || value.isEmpty())
+    {
+      return defaultValue;
+    }
+    try
+    {
+      return Integer.parseInt(value);
+    }
+    catch(NumberFormatException e)
+    {
+      throw new IllegalArgumentException(String.format("option --%s needs a number, got '%s'", name, value));
+    }
+  }
+
+  public boolean isSinglePass()
+  {
+    return options.containsKey("single-pass");
+  }
+
+  /**
+   * @return the number of workers exporting contacts and images, {@code 1} exports sequential
+   */
+  public int getThreads()
+  {
+    return Math.max(getIntOption("threads", 1), 1);
+  }
+
+  /**
+   * @return the maximal size of the image cache in bytes
+   */
+  public long getImageCacheSize()
+  {
+    return getIntOption("image-cache-size", 1024) * 1024L * 1024L;
+  }
+
+  public boolean isIncremental()
+  {
+    return options.containsKey("incremental");
+  }
+
+  /**
+   * @return true if the messages are rendered while they are read, this queries every contact separately
+   */
+  public boolean isStreaming()
+  {
+    return options.containsKey("streaming");
+  }
+
+  /**
+   * @return true if the images are stored in the media directory instead of inlined into the message files
+   */
+  public boolean isMedia()
+  {
+    return options.containsKey("media");
+  }
+
+  /**
+   * @return true if large images are decoded subsampled before they are resized
+   */
+  public boolean isSubsample()
+  {
+    return options.containsKey("subsample");
+  }
+
+  /**
+   * @return the maximal number of messages of a page, 0 for no limit
+   */
+  public int getPageSize()
+  {
+    return Math.max(getIntOption("page-size", 0), 0);
+  }
+
+  public boolean isPageMonthly()
+  {
+    return options.containsKey("page-monthly");
+  }
+
+  /**
+   * @return true if the export stages are emitted as JFR events
+   */
+  public boolean isJfr()
+  {
+    return options.containsKey("jfr");
+  }
+
+  /**
+   * @return the memory map size of every backup database in bytes, default 256 MB
+   */
+  public long getMmapSize()
+  {
+    return getIntOption("mmap-size", 256) * 1024L * 1024L;
+  }
+
+  /**
+   * @return the page cache size of every database connection in bytes, default 64 MB
+   */
+  public long getCacheSize()
+  {
+    return getIntOption("cache-size", 64) * 1024L * 1024L;
+  }
+
+  /**
+   * @return true if the backup databases are copied into memory
+   */
+  public boolean isInMemory()
+  {
+    return options.containsKey("in-memory");
+  }
+
+  /**
+   * @return the number of ROWID ranges of the message table read in parallel by a single pass
+   */
+  public int getPartitions()
+  {
+    return Math.max(getIntOption("partitions", 1), 1);
+  }
+
+  /**
+   * @return the data format of the export or null for HTML
+   */
+  public DataFormat getFormat()
+  {
+    String format = getOption("format", "html");
+    if(format.equalsIgnoreCase("html"))
+    {
+      return null;
+    }
+    for(DataFormat dataFormat : DataFormat.values())
+    {
+      if(dataFormat.getExtension().equalsIgnoreCase(format))
+      {
+        return dataFormat;
+      }
+    }
+    throw new IllegalArgumentException(String.format("option --format needs html, ndjson, csv or sqlite, got '%s'", format));
+  }
+
+  /**
+   * @return true if the data rows of all contacts are written to one file
+   */
+  public boolean isCombined()
+  {
+    return options.containsKey("combined");
+  }
+
+  /**
+   * @return true if the message files are rendered by FreeMarker with ioback.ftl instead of the built-in renderer
+   */
+  public boolean isFreemarker()
+  {
+    return options.containsKey("freemarker");
+  }
+
+  /**
+   * @return true if the images are shown as lazy loaded thumbnails linking to the image files
+   */
+  public boolean isThumbnails()
+  {
+    return options.containsKey("thumbnails");
+  }
+
+  /**
+   * @return true if attachments, which are not shown as images, are linked from the message files
+   */
+  public boolean isAttachments()
+  {
+    return options.containsKey("attachments");
+  }
+
+  /**
+   * @return true if an interrupted export is resumed from its journal
+   */
+  public boolean isResume()
+  {
+    return options.containsKey("resume");
+  }
+
+  /**
+   * @return the memory budget of the decoded images in bytes, by default half of the maximal heap
+   */
+  public long getImageMemory()
+  {
+    int imageMemory = getIntOption("image-memory", 0);
+    return imageMemory > 0 ? imageMemory * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 2;
+  }
+
+  /**
+   * @return the size of the read-ahead buffers of the image files in bytes, 0 to read them when they are decoded
+   */
+  public long getPrefetch()
+  {
+    return getIntOption("prefetch", 0) * 1024L * 1024L;
+  }
+
+  /**
+   * @return the directories of further backups, which are merged into the export of the first backup
+   */
+  public List<String> getMergeDirs()
+  {
+    List<String> mergeDirs = new ArrayList<>();
+    for(String mergeDir : getOption("merge", "").split(File.pathSeparator))
+    {
+      if(!mergeDir.isEmpty())
+      {
+        mergeDirs.add(mergeDir);
+      }
+    }
+    return mergeDirs;
+  }
+}
@@ -0,0 +1,202 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of an incremental export. It records the highest message ROWID and date exported for every contact and
+ * the highest message ROWID of the whole message database at the last run.
+ */
+public class ExportState
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExportState.class);
+  private static final String STATE_FILE = ".msgexport-state";
+
+  private final File stateFile;
+  private final Map<String, Watermark> contactWatermarks = new ConcurrentHashMap<>();
+  private long rowID;
+  // the highest message ROWID of this run, saved only if all selected contacts are exported
+  private long currentRowID;
+  // the selected contacts, which are not exported yet
+  private final Set<String> pendingContacts = ConcurrentHashMap.newKeySet();
+
+  private ExportState(File stateFile)
+  {
+    this.stateFile = stateFile;
+  }
+
+  public static ExportState load(File destDir)
+    throws IOException
+  {
+    ExportState state = new ExportState(new File(destDir, STATE_FILE));
+    if(state.stateFile.isFile())
+    {
+      Properties properties = new Properties();
+      try (InputStream inputStream = new FileInputStream(state.stateFile))
+      {
+        properties.load(inputStream);
+      }
+
+      state.rowID = Long.parseLong(properties.getProperty("rowid", "0"));
+      for(String key : properties.stringPropertyNames())
+      {
+        if(key.startsWith("rowid."))
+        {
+          String name = key.substring("rowid.".length());
+          state.contactWatermarks.put(name, new Watermark(Long.parseLong(properties.getProperty(key)),
+                                                          Long.parseLong(properties.getProperty("date." + name, "0"))));
+        }
+      }
+    }
+
+    return state;
+  }
+
+  /**
+   * Save the state. The ROWID of the whole database is only raised if every selected contact was exported, otherwise
+   * the next run would not see the new messages of the failed contacts.
+   */
+  public void save()
+    throws IOException
+  {
+    if(pendingContacts.isEmpty())
+    {
+      rowID = Math.max(rowID, currentRowID);
+    }
+    else
+    {
+      LOGGER.warn(String.format("%d contacts are not exported, they are exported with the next run", pendingContacts.size()));
+    }
+
+    Properties properties = new Properties();
+    properties.setProperty("rowid", Long.toString(rowID));
+    contactWatermarks.forEach(
+      (name, watermark) ->
+      {
+        properties.setProperty("rowid." + name, Long.toString(watermark.getRowID()));
+        properties.setProperty("date." + name, Long.toString(watermark.getDate()));
+      });
+
+    File tmpFile = new File(stateFile.getParentFile(), STATE_FILE + ".tmp");
+    try (OutputStream outputStream = new FileOutputStream(tmpFile))
+    {
+      properties.store(outputStream, "msgexport incremental state");
+    }
+    Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the highest message ROWID of the last run, all messages above are new
+   */
+  public long getRowID()
+  {
+    return rowID;
+  }
+
+  /**
+   * Select the contacts to export. A contact is exported if it was never exported before or one of its handles has
+   * messages above the watermark of the contact.
+   *
+   * @param contacts         all contacts
+   * @param handleWatermarks the watermarks of all handles with messages above {@link #getRowID()}
+   *
+   * @return the contacts to export
+   */
+  public Set<Contact> selectChanged(Set<Contact> contacts, Map<String, Watermark> handleWatermarks)
+  {
+    // every message up to the current maximum is exported with this run
+    for(Watermark watermark : handleWatermarks.values())
+    {
+      currentRowID = Math.max(currentRowID, watermark.getRowID());
+    }
+
+    Set<Contact> changed = new HashSet<>();
+    for(Contact contact : contacts)
+    {
+      Watermark exported = contactWatermarks.get(contact.getName());
+      Watermark current = getWatermark(contact, handleWatermarks);
+      if(exported == null || current != null && current.getRowID() > exported.getRowID())
+      {
+        changed.add(contact);
+        pendingContacts.add(contact.getName());
+      }
+      else
+      {
+        LOGGER.debug(String.format("skip unchanged %s", contact.getName()));
+      }
+    }
+
+    return changed;
+  }
+
+  /**
+   * Record a successful export of a contact.
+   */
+  public void exported(Contact contact, Map<String, Watermark> handleWatermarks)
+  {
+    Watermark current = getWatermark(contact, handleWatermarks);
+    Watermark exported = contactWatermarks.get(contact.getName());
+    if(current == null)
+    {
+      // no new messages since the last run, everything up to the last run is exported
+      current = new Watermark(rowID, exported != null ? exported.getDate() : 0L);
+    }
+    contactWatermarks.put(contact.getName(), current);
+    pendingContacts.remove(contact.getName());
+  }
+
+  private static Watermark getWatermark(Contact contact, Map<String, Watermark> handleWatermarks)
+  {
+    Watermark result = null;
+    for(String handle : contact.getHandles())
+    {
+      Watermark watermark = handleWatermarks.get(handle);
+      if(watermark != null)
+      {
+        result = result == null ? watermark : new Watermark(Math.max(result.getRowID(), watermark.getRowID()),
+                                                            Math.max(result.getDate(), watermark.getDate()));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * The highest message ROWID and date of a handle or contact.
+   */
+  public static class Watermark
+  {
+    private final long rowID;
+    private final long date;
+
+    public Watermark(long rowID, long date)
+    {
+      this.rowID = rowID;
+      this.date = date;
+    }
+
+    public long getRowID()
+    {
+      return rowID;
+    }
+
+    public long getDate()
+    {
+      return date;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package msgexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+
+/**
+ * Built-in renderer of the message file of a contact with the same markup as ioback.ftl, written directly without the
+ * template engine. Values are escaped while they are written and all dates are formatted by one shared formatter.
+ * The head with the stylesheet is taken from ioback.ftl, so both renderers share it.
+ */
+public class HtmlRenderer
+  implements Renderer<MsgExportApplication.ContactMessages>
+{
+  private static final String TEMPLATE = "templates/ioback.ftl";
+  private static final String HEAD = readHead();
+  // the datetime_format of ioback.ftl in the default time zone like FreeMarker
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  @Override
+  public void render(MsgExportApplication.ContactMessages model, Writer writer)
+    throws IOException
+  {
+    String name = model.getContact().getName();
+    writer.write(HEAD);
+    writer.write("    <title>");
+    writeHtml(writer, name);
+    writer.write("</title>\n  </head>\n  <body>\n    <h1>");
+    writeHtml(writer, name);
+    writer.write("</h1>\n");
+
+    Page page = model.getPage();
+    if(page != null)
+    {
+      writeNavigation(writer, page);
+    }
+
+    writer.write("\n    <blockquote class=\"chat\">\n");
+    Iterator<Message> messages = model.getMessageIterator();
+    while(messages.hasNext())
+    {
+      Message message = messages.next();
+      String party = message.getType() == 0 ? "them" : "me";
+      writer.write("      <p class=\"");
+      writer.write(party);
+      writer.write(' ');
+      writer.write(party);
+      writer.write(message.isSms() ? "-sms\">\n        " : "-iMessage\">\n        ");
+      if(message.getThumbnailData() != null)
+      {
+        writer.write("<a href=\"");
+        writer.write(message.getImageData());
+        writer.write("\"><img loading=\"lazy\" style=\"max-width: 300px\" src=\"");
+        writer.write(message.getThumbnailData());
+        writer.write("\"/></a>");
+      }
+      else if(message.getImageData() != null)
+      {
+        writer.write("<img style=\"max-width: 300px\" src=\"");
+        writer.write(message.getImageData());
+        writer.write("\"/>");
+      }
+      else if(message.getAttachmentData() != null)
+      {
+        writer.write("<a href=\"");
+        writer.write(message.getAttachmentData());
+        writer.write("\">");
+        writeHtml(writer, message.getAttachmentName());
+        writer.write("</a>");
+      }
+      writer.write("\n      ");
+      writeHtml(writer, message.getText());
+      writer.write("\n        <br/>\n        <span>");
+      DATE_FORMAT.formatTo(message.getDate().toInstant(), writer);
+      writer.write("</span></p>\n");
+    }
+    writer.write("    </blockquote>\n");
+
+    if(page != null)
+    {
+      writeNavigation(writer, page);
+    }
+    writer.write("  </body>\n\n</html>\n\n");
+  }
+
+  private static void writeNavigation(Writer writer, Page page)
+    throws IOException
+  {
+    writer.write("    <nav style=\"clear: both; text-align: center\">\n      ");
+    if(page.getPreviousFilename() != null)
+    {
+      writer.write("<a href=\"");
+      writeUrl(writer, page.getPreviousFilename());
+      writer.write("\">&lt;</a>");
+    }
+    writer.write("\n      <a href=\"");
+    writeUrl(writer, page.getIndexFilename());
+    writer.write("\">");
+    // numbers are formatted by locale like FreeMarker
+    NumberFormat numberFormat = NumberFormat.getNumberInstance();
+    writer.write(numberFormat.format(page.getNumber()));
+    writer.write(" / ");
+    writer.write(numberFormat.format(page.getCount()));
+    writer.write("</a>\n      ");
+    if(page.getNextFilename() != null)
+    {
+      writer.write("<a href=\"");
+      writeUrl(writer, page.getNextFilename());
+      writer.write("\">&gt;</a>");
+    }
+    writer.write("\n    </nav>\n");
+  }
+
+  /**
+   * Write a text with the characters of the FreeMarker ?html built-in escaped.
+   */
+  static void writeHtml(Writer writer, String value)
+    throws IOException
+  {
+    // write the unescaped runs in one piece
+    int start = 0;
+    int length = value.length();
+    for(int i = 0; i < length; i++)
+    {
+      String entity;
+      switch(value.charAt(i))
+      {
+        case '<':
+          entity = "&lt;";
+          break;
+        case '>':
+          entity = "&gt;";
+          break;
+        case '&':
+          entity = "&amp;";
+          break;
+        case '"':
+          entity = "&quot;";
+          break;
+        case '\'':
+          entity = "&#39;";
+          break;
+        default:
+          continue;
+      }
+      writer.write(value, start, i - start);
+      writer.write(entity);
+      start = i + 1;
+    }
+    writer.write(value, start, length - start);
+  }
+
+  /**
+   * Write a text URL escaped in UTF-8 like the FreeMarker ?url built-in.
+   */
+  static void writeUrl(Writer writer, String value)
+    throws IOException
+  {
+    int length = value.length();
+    for(int i = 0; i < length; i++)
+    {
+      char c = value.charAt(i);
+      if(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+         || c == '_' || c == '-' || c == '.' || c == '!' || c == '~' || c >= '\'' && c <= '*')
+      {
+        writer.write(c);
+      }
+      else
+      {
+        // percent encode the UTF-8 bytes of the character, surrogate pairs together
+        int end = Character.isHighSurrogate(c) && i + 1 < length ? i + 2 : i + 1;
+        for(byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8))
+        {
+          writer.write('%');
+          writer.write(HEX[(b >> 4) & 0xf]);
+          writer.write(HEX[b & 0xf]);
+        }
+        i = end - 1;
+      }
+    }
+  }
+
+  private static String readHead()
+  {
+    try (InputStream in = HtmlRenderer.class.getClassLoader().getResourceAsStream(TEMPLATE))
+    {
+      if(in == null)
+      {
+        throw new IllegalStateException(String.format("missing %s", TEMPLATE));
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while((read = in.read(buffer)) > 0)
+      {
+        out.write(buffer, 0, read);
+      }
+      String template = new String(out.toByteArray(), StandardCharsets.UTF_8);
+      return template.substring(0, template.indexOf("    <title>"));
+    }
+    catch(IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package msgexport;
+
+import org.imgscalr.Scalr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of transcoded images.
+ * The entries are stored in the same sha1 prefix layout as the iOS backup and evicted least recently used
+ * when the size of the cache exceeds its limit. The file modification time records the last access between runs.
+ */
+public class ImageCache
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageCache.class);
+
+  private final File cacheDir;
+  private final long maxSize;
+  private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ImageCache(File cacheDir, long maxSize)
+  {
+    this.cacheDir = cacheDir;
+    this.maxSize = maxSize;
+
+    if(!cacheDir.isDirectory() && !cacheDir.mkdirs())
+    {
+      throw new IllegalArgumentException(String.format("can not create image cache directory '%s'", cacheDir));
+    }
+
+    load();
+  }
+
+  /**
+   * Create the cache key of a transcoded image.
+   *
+   * @param sha1        the sha1 of the attachment in the backup
+   * @param imageFile   the attachment file
+   * @param maxWidth    the maximal width of the transcoded image
+   * @param orientation the exif orientation of the image
+   * @param subsample   true if large images are decoded subsampled
+   * @param method      the resize method of the transcoded image
+   *
+   * @return the key
+   */
+  public static String createKey(String sha1, File imageFile, int maxWidth, int orientation, boolean subsample, Scalr.Method method)
+  {
+    return Util.sha1(String.format("%s:%d:%d:%d:%d:%b:%s", sha1, imageFile.length(), imageFile.lastModified(), maxWidth, orientation, subsample, method));
+  }
+
+  public byte[] get(String key)
+  {
+    File entry = new File(cacheDir, Util.createFilename(key));
+    synchronized(this)
+    {
+      if(entries.get(key) == null)
+      {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+
+    try
+    {
+      byte[] data = Files.readAllBytes(entry.toPath());
+      entry.setLastModified(System.currentTimeMillis());
+      hits.incrementAndGet();
+      return data;
+    }
+    catch(IOException e)
+    {
+      LOGGER.debug(String.format("can not read cached image %s", key), e);
+      remove(key);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  public void put(String key, byte[] data)
+  {
+    File entry = new File(cacheDir, Util.createFilename(key));
+    try
+    {
+      Files.createDirectories(entry.getParentFile().toPath());
+      File tmpFile = File.createTempFile(key, ".tmp", entry.getParentFile());
+      Files.write(tmpFile.toPath(), data);
+      Files.move(tmpFile.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(IOException e)
+    {
+      LOGGER.warn(String.format("can not cache image %s", key), e);
+      return;
+    }
+
+    synchronized(this)
+    {
+      Long previous = entries.put(key, (long) data.length);
+      size += data.length - (previous != null ? previous : 0L);
+      evict();
+    }
+  }
+
+  public void logStatistics()
+  {
+    LOGGER.info(String.format("image cache: %d hits, %d misses, %d evictions, %d entries, %d bytes",
+                              hits.get(), misses.get(), evictions.get(), entries.size(), size));
+  }
+
+  private synchronized void remove(String key)
+  {
+    Long previous = entries.remove(key);
+    if(previous != null)
+    {
+      size -= previous;
+    }
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while(size > maxSize && iterator.hasNext())
+    {
+      Map.Entry<String, Long> eldest = iterator.next();
+      iterator.remove();
+      size -= eldest.getValue();
+      evictions.incrementAndGet();
+
+      File entry = new File(cacheDir, Util.createFilename(eldest.getKey()));
+      if(!entry.delete())
+      {
+        LOGGER.debug(String.format("can not delete cached image %s", entry));
+      }
+    }
+  }
+
+  private void load()
+  {
+    List<File> files = new ArrayList<>();
+    File[] prefixDirs = cacheDir.listFiles(File::isDirectory);
+    if(prefixDirs != null)
+    {
+      for(File prefixDir : prefixDirs)
+      {
+        File[] prefixFiles = prefixDir.listFiles(File::isFile);
+        if(prefixFiles != null)
+        {
+          for(File file : prefixFiles)
+          {
+            if(file.getName().endsWith(".tmp"))
+            {
+              // left over from an aborted run
+              file.delete();
+            }
+            else
+            {
+              files.add(file);
+            }
+          }
+        }
+      }
+    }
+
+    // oldest access first, so the insertion order matches the access order
+    files.sort(Comparator.comparingLong(File::lastModified));
+    for(File file : files)
+    {
+      entries.put(file.getName(), file.length());
+      size += file.length();
+    }
+    evict();
+  }
+}
@@ -0,0 +1,89 @@
+package msgexport;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Budget of the heap memory used by decoded images. Every image takes its estimated footprint from the budget before
+ * it is decoded and returns it after it is encoded, workers wait while the budget is taken by other images. An image
+ * larger than the budget takes the whole budget and is processed alone.
+ * The budget is counted in KiB, waiting workers are served in order, so large images are not starved by small ones.
+ */
+public class ImageMemoryBudget
+{
+  // the decoded images have 4 bytes per pixel, eg. TYPE_INT_RGB or TYPE_INT_ARGB after a rotation or resize
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private final int budget;
+  private final Semaphore semaphore;
+
+  /**
+   * @param budget the memory budget in bytes
+   */
+  public ImageMemoryBudget(long budget)
+  {
+    this.budget = (int) Math.min(Math.max(budget / 1024, 1), Integer.MAX_VALUE);
+    this.semaphore = new Semaphore(this.budget, true);
+  }
+
+  /**
+   * Estimate the peak memory of decoding, rotating and resizing an image. The decoded image and its rotated copy exist
+   * at the same time, the resized image is small in comparison and covered by the copy.
+   *
+   * @param width       the image width in pixel or -1 if unknown
+   * @param height      the image height in pixel or -1 if unknown, a square is assumed for a known width
+   * @param subsampling the decode subsampling, 1 for every pixel
+   *
+   * @return the estimated memory in bytes or -1 if the image size is unknown
+   */
+  public static long estimate(int width, int height, int subsampling)
+  {
+    if(width < 0)
+    {
+      return -1;
+    }
+    long decodedWidth = (width + subsampling - 1) / subsampling;
+    long decodedHeight = ((height >= 0 ? height : width) + subsampling - 1) / subsampling;
+    return 2 * decodedWidth * decodedHeight * BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Take memory from the budget, waits until enough memory is returned by other images.
+   *
+   * @param bytes the memory in bytes, -1 if unknown to take the whole budget
+   *
+   * @return the taken memory in KiB, to be returned by {@link #release(int)}
+   */
+  public int acquire(long bytes)
+    throws InterruptedIOException
+  {
+    int permits = bytes < 0 ? budget : (int) Math.min((bytes + 1023) / 1024, budget);
+    try
+    {
+      // the timed tryAcquire keeps the order of the waiting workers
+      if(permits > 0 && !semaphore.tryAcquire(permits, 0, TimeUnit.SECONDS))
+      {
+        long start = ExportMetrics.start();
+        semaphore.acquire(permits);
+        ExportMetrics.stop("images.wait", start);
+      }
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for image memory");
+    }
+    return permits;
+  }
+
+  /**
+   * Return memory to the budget.
+   *
+   * @param permits the memory in KiB taken by {@link #acquire(long)}
+   */
+  public void release(int permits)
+  {
+    semaphore.release(permits);
+  }
+}
@@ -0,0 +1,150 @@
+package msgexport;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.FileTypeDetector;
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.MetadataException;
+import com.drew.metadata.bmp.BmpHeaderDirectory;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.gif.GifHeaderDirectory;
+import com.drew.metadata.jpeg.JpegDirectory;
+import com.drew.metadata.png.PngDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The header information of an image file: the file type, the dimensions and the exif orientation.
+ * The information is read with one pass over the file header without decoding the pixels.
+ */
+public class ImageProbe
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageProbe.class);
+
+  private final FileType fileType;
+  private final int width;
+  private final int height;
+  private final int orientation;
+
+  private ImageProbe(FileType fileType, int width, int height, int orientation)
+  {
+    this.fileType = fileType;
+    this.width = width;
+    this.height = height;
+    this.orientation = orientation;
+  }
+
+  public static ImageProbe probe(File imageFile)
+    throws IOException
+  {
+    try (BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(imageFile)))
+    {
+      return probe(inputStream, imageFile.length(), imageFile);
+    }
+  }
+
+  /**
+   * Probe an image file, which is already read into memory.
+   *
+   * @param data      the content of the image file
+   * @param imageFile the image file
+   */
+  public static ImageProbe probe(byte[] data, File imageFile)
+    throws IOException
+  {
+    return probe(new BufferedInputStream(new ByteArrayInputStream(data)), data.length, imageFile);
+  }
+
+  private static ImageProbe probe(BufferedInputStream inputStream, long length, File imageFile)
+    throws IOException
+  {
+    FileType fileType = FileTypeDetector.detectFileType(inputStream);
+    int width = -1;
+    int height = -1;
+    int orientation = 1; // normal, no rotation needed
+    try
+    {
+      Metadata metadata = ImageMetadataReader.readMetadata(inputStream, length, fileType);
+
+      ExifIFD0Directory exifIFD0Directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+      if(exifIFD0Directory != null && exifIFD0Directory.getInteger(ExifIFD0Directory.TAG_ORIENTATION) != null)
+      {
+        orientation = Math.min(Math.max(exifIFD0Directory.getInteger(ExifIFD0Directory.TAG_ORIENTATION), 1), 8);
+      }
+
+      width = getSize(metadata, JpegDirectory.TAG_IMAGE_WIDTH, PngDirectory.TAG_IMAGE_WIDTH, GifHeaderDirectory.TAG_IMAGE_WIDTH, BmpHeaderDirectory.TAG_IMAGE_WIDTH);
+      height = getSize(metadata, JpegDirectory.TAG_IMAGE_HEIGHT, PngDirectory.TAG_IMAGE_HEIGHT, GifHeaderDirectory.TAG_IMAGE_HEIGHT, BmpHeaderDirectory.TAG_IMAGE_HEIGHT);
+    }
+    catch(ImageProcessingException | MetadataException e)
+    {
+      LOGGER.debug(String.format("can not read image metadata of %s", imageFile), e);
+    }
+
+    return new ImageProbe(fileType, width, height, orientation);
+  }
+
+  private static int getSize(Metadata metadata, int jpegTag, int pngTag, int gifTag, int bmpTag)
+    throws MetadataException
+  {
+    int size = getSize(metadata.getFirstDirectoryOfType(JpegDirectory.class), jpegTag);
+    if(size < 0)
+    {
+      size = getSize(metadata.getFirstDirectoryOfType(PngDirectory.class), pngTag);
+    }
+    if(size < 0)
+    {
+      size = getSize(metadata.getFirstDirectoryOfType(GifHeaderDirectory.class), gifTag);
+    }
+    if(size < 0)
+    {
+      size = getSize(metadata.getFirstDirectoryOfType(BmpHeaderDirectory.class), bmpTag);
+    }
+
+    return size;
+  }
+
+  private static int getSize(Directory directory, int tag)
+    throws MetadataException
+  {
+    return directory != null && directory.containsTag(tag) ? directory.getInt(tag) : -1;
+  }
+
+  /**
+   * @return false if the file type is known and can not be decoded, true if the image can or may be decoded
+   */
+  public boolean isDecodable()
+  {
+    return fileType == FileType.Unknown || fileType.getMimeType() == null
+           || ImageIO.getImageReadersByMIMEType(fileType.getMimeType()).hasNext();
+  }
+
+  /**
+   * @return the image width in pixel or -1 if unknown
+   */
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /**
+   * @return the image height in pixel or -1 if unknown
+   */
+  public int getHeight()
+  {
+    return height;
+  }
+
+  public int getOrientation()
+  {
+    return orientation;
+  }
+}
@@ -0,0 +1,193 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Store of exported media files next to the message files.
+ * Every file is stored once under the sha1 of its content and referenced by a path relative to the export directory.
+ */
+public class MediaStore
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaStore.class);
+
+  public static final String MEDIA_DIR = "media";
+
+  private final File mediaDir;
+  // false after a hardlink failed, eg. across file systems
+  private volatile boolean hardlinks = true;
+
+  public MediaStore(File destDir)
+  {
+    this.mediaDir = new File(destDir, MEDIA_DIR);
+
+    if(!mediaDir.isDirectory() && !mediaDir.mkdirs())
+    {
+      throw new IllegalArgumentException(String.format("can not create media directory '%s'", mediaDir));
+    }
+  }
+
+  /**
+   * @param src the path of a stored file relative to the export directory
+   *
+   * @return true if the file is in the media directory
+   */
+  public boolean contains(String src)
+  {
+    return src.startsWith(MEDIA_DIR + "/") && new File(mediaDir, src.substring(MEDIA_DIR.length() + 1)).isFile();
+  }
+
+  /**
+   * Store encoded media data.
+   *
+   * @param data      the media data
+   * @param extension the file extension
+   *
+   * @return the path of the stored file relative to the export directory
+   */
+  public String store(byte[] data, String extension)
+    throws IOException
+  {
+    String filename = String.format("%s.%s", Util.sha1(data), extension);
+    File mediaFile = new File(mediaDir, filename);
+    if(!mediaFile.exists())
+    {
+      File tmpFile = File.createTempFile(filename, ExportJournal.TMP_SUFFIX, mediaDir);
+      try
+      {
+        Files.write(tmpFile.toPath(), data);
+        ExportMetrics.count("bytes.written", data.length);
+        Files.move(tmpFile.toPath(), mediaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+        Files.deleteIfExists(tmpFile.toPath());
+      }
+    }
+
+    return MEDIA_DIR + "/" + filename;
+  }
+
+  /**
+   * Store a media file unchanged. The file is hashed by a mapped read and only copied, by a channel transfer without
+   * passing the data through the heap, if it is not stored yet.
+   *
+   * @param file      the media file
+   * @param extension the file extension
+   *
+   * @return the path of the stored file relative to the export directory
+   */
+  public String store(File file, String extension)
+    throws IOException
+  {
+    String filename = String.format("%s.%s", sha1(file), extension);
+    File mediaFile = new File(mediaDir, filename);
+    if(!mediaFile.exists())
+    {
+      copy(file, mediaFile);
+    }
+
+    return MEDIA_DIR + "/" + filename;
+  }
+
+  /**
+   * Place a file in the media directory without reading it, as hardlink to the file. If the media directory is on
+   * another file system, the file is copied by a channel transfer.
+   *
+   * @param file     the file, it is never changed by the export
+   * @param filename the unique name of the file in the media directory, eg. the backup filename with extension
+   *
+   * @return the path of the placed file relative to the export directory
+   */
+  public String link(File file, String filename)
+    throws IOException
+  {
+    File mediaFile = new File(mediaDir, filename);
+    if(!mediaFile.exists())
+    {
+      if(hardlinks)
+      {
+        try
+        {
+          Files.createLink(mediaFile.toPath(), file.toPath());
+          ExportMetrics.count("attachments.linked", 1);
+          return MEDIA_DIR + "/" + filename;
+        }
+        catch(FileAlreadyExistsException e)
+        {
+          // linked by another worker
+          return MEDIA_DIR + "/" + filename;
+        }
+        catch(IOException | UnsupportedOperationException e)
+        {
+          hardlinks = false;
+          LOGGER.info(String.format("can not create hardlinks in %s, copy the attachments: %s", mediaDir, e.getMessage()));
+        }
+      }
+
+      copy(file, mediaFile);
+      ExportMetrics.count("attachments.copied", 1);
+    }
+
+    return MEDIA_DIR + "/" + filename;
+  }
+
+  private static String sha1(File file)
+    throws IOException
+  {
+    try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      MessageDigest messageDigest = MessageDigest.getInstance("sha1");
+      long size = source.size();
+      long position = 0;
+      while(position < size)
+      {
+        long length = Math.min(size - position, Integer.MAX_VALUE);
+        messageDigest.update(source.map(FileChannel.MapMode.READ_ONLY, position, length));
+        position += length;
+      }
+      ExportMetrics.count("bytes.read", size);
+      return Util.bytesToHex(messageDigest.digest());
+    }
+    catch(NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void copy(File file, File mediaFile)
+    throws IOException
+  {
+    File tmpFile = File.createTempFile(mediaFile.getName(), ExportJournal.TMP_SUFFIX, mediaDir);
+    try
+    {
+      try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+           FileChannel target = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+      {
+        long size = source.size();
+        long position = 0;
+        while(position < size)
+        {
+          position += source.transferTo(position, size - position, target);
+        }
+        ExportMetrics.count("bytes.read", size);
+        ExportMetrics.count("bytes.written", size);
+      }
+      Files.move(tmpFile.toPath(), mediaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmpFile.toPath());
+    }
+  }
+}
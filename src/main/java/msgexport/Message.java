@@ -4,6 +4,8 @@ import java.util.Date;
 
 public class Message
 {
+  // the globally unique id of the message, the same in every backup of the message, null if unknown
+  private final String guid;
   private final String uniqueID;
   private final Date date;
   private final int type;
@@ -12,6 +14,8 @@ public class Message
   private final String attachmentMimetype;
   private final boolean sms;
   private String imageData;
+  private String thumbnailData;
+  private String attachmentData;
 
   public Message(String uniqueID, Date date, int type, String text, boolean sms)
   {
@@ -20,6 +24,12 @@ public class Message
 
   public Message(String uniqueID, Date date, int type, String text, boolean sms, String attachmentFilename, String attachmentMimetype)
   {
+    this(null, uniqueID, date, type, text, sms, attachmentFilename, attachmentMimetype);
+  }
+
+  public Message(String guid, String uniqueID, Date date, int type, String text, boolean sms, String attachmentFilename, String attachmentMimetype)
+  {
+    this.guid = guid;
     this.uniqueID = uniqueID;
     this.date = date;
     this.type = type;
@@ -29,6 +39,11 @@ public class Message
     this.attachmentMimetype = attachmentMimetype;
   }
 
+  public String getGuid()
+  {
+    return guid;
+  }
+
   public String getUniqueID()
   {
     return uniqueID;
@@ -64,6 +79,25 @@ public class Message
     return attachmentMimetype;
   }
 
+  /**
+   * @return true if the attachment is an image
+   */
+  public boolean isImage()
+  {
+    return attachmentMimetype != null && attachmentMimetype.startsWith("image/");
+  }
+
+  /**
+   * @return the filename of the attachment without its path or null without attachment
+   */
+  public String getAttachmentName()
+  {
+    return attachmentFilename != null ? attachmentFilename.substring(attachmentFilename.lastIndexOf('/') + 1) : null;
+  }
+
+  /**
+   * @param imageData the image source, either inline data or a path relative to the export directory
+   */
   public void setImageData(String imageData)
   {
     this.imageData = imageData;
@@ -73,4 +107,30 @@ public class Message
   {
     return imageData;
   }
+
+  /**
+   * @param thumbnailData the source of a thumbnail of the image, a path relative to the export directory
+   */
+  public void setThumbnailData(String thumbnailData)
+  {
+    this.thumbnailData = thumbnailData;
+  }
+
+  public String getThumbnailData()
+  {
+    return thumbnailData;
+  }
+
+  /**
+   * @param attachmentData the path of an attachment, which is not shown as image, relative to the export directory
+   */
+  public void setAttachmentData(String attachmentData)
+  {
+    this.attachmentData = attachmentData;
+  }
+
+  public String getAttachmentData()
+  {
+    return attachmentData;
+  }
 }
@@ -6,76 +6,61 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class MessageBuilder
 {
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageBuilder.class);
-  private static final String SMS_DB = Util.sha1("HomeDomain-Library/SMS/sms.db");
+  private static final String SMS_DB = "Library/SMS/sms.db";
+  // the order of the single scan and of every ROWID range
+  private static final Comparator<Message> MESSAGE_ORDER = Comparator.comparing(Message::getUniqueID).thenComparing(Message::getDate);
 
-  public static List<Message> readMessages(File backupDir, Contact contact)
+  public static List<Message> readMessages(BackupIndex backup, Contact contact)
     throws SQLException
   {
-    File smsBackupDB = new File(backupDir, Util.createFilename(SMS_DB));
+    File smsBackupDB = backup.getFile(BackupIndex.HOME_DOMAIN, SMS_DB);
 
-    if(smsBackupDB.exists() && smsBackupDB.isFile() && smsBackupDB.canRead())
+    if(smsBackupDB != null)
     {
-      try (Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", smsBackupDB.getAbsolutePath())))
+      try (Connection connection = backup.getConnection(smsBackupDB))
       {
         List<Message> messages = new ArrayList<>();
         try
         {
           try (Statement statement = connection.createStatement())
           {
-            // build ugly sql query cause sqlite do not implement PreparedStatement.setArray()
-            String sql = "SELECT"
-                         + "  h.id AS UniqueID,"
-                         + "  m.is_from_me AS Type,"
-                         + "  m.date AS Date,"
-                         + "  m.text AS Text,"
-                         + "  a.filename AS AttachementFilename,"
-                         + "  a.mime_type AS AttachementMimetype"
-                         + " FROM message m"
-                         + "  LEFT JOIN handle h ON h.rowid = m.handle_id"
-                         + "  LEFT JOIN message_attachment_join maj ON maj.message_id = m.rowid"
-                         + "  LEFT JOIN attachment a ON maj.attachment_id = a.rowid"
-                         + " WHERE h.id in (" + createEmailAndPhoneLst(contact) + ")"
-                         + " ORDER BY Date";
-            if(statement.execute(sql))
+            if(statement.execute(createContactQuery(contact)))
             {
               try (ResultSet resultSet = statement.getResultSet())
               {
+                long rows = 0;
                 while(resultSet.next())
                 {
-                  String uniqueID = resultSet.getString("UniqueID");
-                  int type = resultSet.getInt("Type");
-                  long date = resultSet.getLong("Date");
-                  String text = getUTF8(resultSet.getBytes("Text"));
-                  String attachementFilename = resultSet.getString("AttachementFilename");
-                  String attachementMimetype = resultSet.getString("AttachementMimetype");
-
-                  if(uniqueID != null && text != null && !text.isEmpty())
+                  rows++;
+                  Message message = createMessage(resultSet);
+                  if(message != null)
                   {
-                    Message message;
-                    boolean isSms = uniqueID.startsWith("+");
-                    if(attachementFilename != null && !attachementFilename.isEmpty()
-                       && attachementMimetype != null && attachementMimetype.startsWith("image/"))
-                    {
-                      message = new Message(uniqueID, getDate(date), type, text, isSms, attachementFilename, attachementMimetype);
-                    }
-                    else
-                    {
-                      message = new Message(uniqueID, getDate(date), type, text, isSms);
-                    }
                     messages.add(message);
                   }
                 }
+                ExportMetrics.count("rows.scanned", rows);
               }
             }
           }
@@ -90,10 +75,342 @@ public class MessageBuilder
     }
     else
     {
-      throw new IllegalArgumentException(String.format("can not read from %s", smsBackupDB.getAbsolutePath()));
+      throw new IllegalArgumentException(String.format("can not read from %s", SMS_DB));
     }
   }
 
+  /**
+   * Open a forward-only stream of the messages of a contact ordered by date.
+   * The stream holds the database connection until it is closed.
+   *
+   * @param backup         the iOS backup
+   * @param contact        the contact
+   * @param messageHandler called for every message before it is returned by the stream
+   *
+   * @return the message stream
+   */
+  public static MessageStream streamMessages(BackupIndex backup, Contact contact, Consumer<Message> messageHandler)
+    throws SQLException
+  {
+    File smsBackupDB = backup.getFile(BackupIndex.HOME_DOMAIN, SMS_DB);
+
+    if(smsBackupDB != null)
+    {
+      Connection connection = backup.getConnection(smsBackupDB);
+      try
+      {
+        Statement statement = connection.createStatement();
+        return new MessageStream(connection, statement, statement.executeQuery(createContactQuery(contact)), messageHandler);
+      }
+      catch(SQLException e)
+      {
+        connection.close();
+        throw e;
+      }
+    }
+    else
+    {
+      throw new IllegalArgumentException(String.format("can not read from %s", SMS_DB));
+    }
+  }
+
+  /**
+   * Read the messages of all contacts with parallel scans over ROWID ranges of the message table.
+   * The rows are ordered by handle and date and dispatched to the contacts by an in-memory handle index.
+   * Every range is read by its own thread and connection, the ordered messages of the ranges are merged by handle and
+   * date, like a single scan.
+   *
+   * @param backup     the iOS backup
+   * @param contacts   all contacts to read the messages for
+   * @param partitions the number of ROWID ranges read in parallel
+   *
+   * @return the messages of every contact with at least one message
+   */
+  public static Map<Contact, List<Message>> readAllMessages(BackupIndex backup, Collection<Contact> contacts, int partitions)
+    throws SQLException
+  {
+    File smsBackupDB = backup.getFile(BackupIndex.HOME_DOMAIN, SMS_DB);
+
+    if(smsBackupDB != null)
+    {
+      Map<String, List<Contact>> handleIndex = createHandleIndex(contacts);
+      if(partitions <= 1)
+      {
+        return readMessageRange(backup, smsBackupDB, handleIndex, Long.MIN_VALUE, Long.MAX_VALUE);
+      }
+
+      long minRowID;
+      long maxRowID;
+      try (Connection connection = backup.getConnection(smsBackupDB))
+      {
+        try (Statement statement = connection.createStatement())
+        {
+          try (ResultSet resultSet = statement.executeQuery("SELECT MIN(rowid) AS MinRowID, MAX(rowid) AS MaxRowID FROM message"))
+          {
+            minRowID = resultSet.getLong("MinRowID");
+            maxRowID = resultSet.getLong("MaxRowID");
+          }
+        }
+      }
+
+      long rangeSize = Math.max((maxRowID - minRowID) / partitions + 1, 1);
+      ExecutorService executor = Executors.newFixedThreadPool(partitions);
+      try
+      {
+        List<Future<Map<Contact, List<Message>>>> ranges = new ArrayList<>();
+        for(long from = minRowID; from <= maxRowID; from += rangeSize)
+        {
+          long rangeFrom = from;
+          long rangeTo = Math.min(from + rangeSize - 1, maxRowID);
+          ranges.add(executor.submit(() -> readMessageRange(backup, smsBackupDB, handleIndex, rangeFrom, rangeTo)));
+        }
+
+        // the messages of every contact from the ranges in ROWID order
+        Map<Contact, List<List<Message>>> rangeMessages = new HashMap<>();
+        for(Future<Map<Contact, List<Message>>> range : ranges)
+        {
+          for(Map.Entry<Contact, List<Message>> entry : range.get().entrySet())
+          {
+            rangeMessages.computeIfAbsent(entry.getKey(), c -> new ArrayList<>()).add(entry.getValue());
+          }
+        }
+
+        Map<Contact, List<Message>> contactMessages = new HashMap<>();
+        for(Map.Entry<Contact, List<List<Message>>> entry : rangeMessages.entrySet())
+        {
+          contactMessages.put(entry.getKey(), mergeRanges(entry.getValue()));
+        }
+        return contactMessages;
+      }
+      catch(ExecutionException e)
+      {
+        if(e.getCause() instanceof SQLException)
+        {
+          throw (SQLException) e.getCause();
+        }
+        throw new IllegalStateException("can not read messages", e.getCause());
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while reading messages", e);
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
+    else
+    {
+      throw new IllegalArgumentException(String.format("can not read from %s", SMS_DB));
+    }
+  }
+
+  /**
+   * Merge the messages of a contact read from several ROWID ranges, every range is ordered by handle and date.
+   *
+   * @param ranges the messages of every range in ROWID order
+   *
+   * @return the messages ordered by handle and date, messages of the same date in ROWID order
+   */
+  private static List<Message> mergeRanges(List<List<Message>> ranges)
+  {
+    if(ranges.size() == 1)
+    {
+      return ranges.get(0);
+    }
+
+    // the head of every range as range index and position, ties are taken from the lower range
+    PriorityQueue<int[]> heads = new PriorityQueue<>(
+      Comparator.<int[], Message>comparing(head -> ranges.get(head[0]).get(head[1]), MESSAGE_ORDER).thenComparingInt(head -> head[0]));
+    int size = 0;
+    for(int i = 0; i < ranges.size(); i++)
+    {
+      heads.add(new int[]{i, 0});
+      size += ranges.get(i).size();
+    }
+
+    List<Message> messages = new ArrayList<>(size);
+    while(!heads.isEmpty())
+    {
+      int[] head = heads.poll();
+      List<Message> range = ranges.get(head[0]);
+      messages.add(range.get(head[1]));
+      if(++head[1] < range.size())
+      {
+        heads.add(head);
+      }
+    }
+    return messages;
+  }
+
+  private static Map<Contact, List<Message>> readMessageRange(BackupIndex backup, File smsBackupDB, Map<String, List<Contact>> handleIndex, long fromRowID, long toRowID)
+    throws SQLException
+  {
+    Map<Contact, List<Message>> contactMessages = new HashMap<>();
+
+    try (Connection connection = backup.getConnection(smsBackupDB))
+    {
+      String sql = "SELECT"
+                   + "  h.id AS UniqueID,"
+                   + "  m.guid AS Guid,"
+                   + "  m.is_from_me AS Type,"
+                   + "  m.date AS Date,"
+                   + "  m.text AS Text,"
+                   + "  a.filename AS AttachementFilename,"
+                   + "  a.mime_type AS AttachementMimetype"
+                   + " FROM message m"
+                   + "  JOIN handle h ON h.rowid = m.handle_id"
+                   + "  LEFT JOIN message_attachment_join maj ON maj.message_id = m.rowid"
+                   + "  LEFT JOIN attachment a ON maj.attachment_id = a.rowid"
+                   + " WHERE m.rowid BETWEEN ? AND ?"
+                   + " ORDER BY UniqueID, Date";
+      try (PreparedStatement statement = connection.prepareStatement(sql))
+      {
+        statement.setLong(1, fromRowID);
+        statement.setLong(2, toRowID);
+        try (ResultSet resultSet = statement.executeQuery())
+        {
+          String currentHandle = null;
+          List<Contact> currentContacts = Collections.emptyList();
+          long rows = 0;
+          while(resultSet.next())
+          {
+            rows++;
+            String uniqueID = resultSet.getString("UniqueID");
+            if(uniqueID == null)
+            {
+              continue;
+            }
+            if(!uniqueID.equals(currentHandle))
+            {
+              currentHandle = uniqueID;
+              currentContacts = handleIndex.getOrDefault(uniqueID, Collections.emptyList());
+            }
+            if(!currentContacts.isEmpty())
+            {
+              Message message = createMessage(resultSet);
+              if(message != null)
+              {
+                for(Contact contact : currentContacts)
+                {
+                  contactMessages.computeIfAbsent(contact, c -> new ArrayList<>()).add(message);
+                }
+              }
+            }
+          }
+          ExportMetrics.count("rows.scanned", rows);
+        }
+      }
+    }
+
+    return contactMessages;
+  }
+
+  /**
+   * Read the highest message ROWID and date of every handle with messages above a ROWID.
+   *
+   * @param backup    the iOS backup
+   * @param rowID     only messages above this ROWID are considered
+   *
+   * @return the watermarks by handle
+   */
+  public static Map<String, ExportState.Watermark> readWatermarks(BackupIndex backup, long rowID)
+    throws SQLException
+  {
+    File smsBackupDB = backup.getFile(BackupIndex.HOME_DOMAIN, SMS_DB);
+
+    if(smsBackupDB != null)
+    {
+      Map<String, ExportState.Watermark> watermarks = new HashMap<>();
+      try (Connection connection = backup.getConnection(smsBackupDB))
+      {
+        String sql = "SELECT h.id AS UniqueID, MAX(m.rowid) AS RowID, MAX(m.date) AS Date"
+                     + " FROM message m"
+                     + "  JOIN handle h ON h.rowid = m.handle_id"
+                     + " WHERE m.rowid > ?"
+                     + " GROUP BY h.id";
+        try (PreparedStatement statement = connection.prepareStatement(sql))
+        {
+          statement.setLong(1, rowID);
+          try (ResultSet resultSet = statement.executeQuery())
+          {
+            while(resultSet.next())
+            {
+              watermarks.put(resultSet.getString("UniqueID"), new ExportState.Watermark(resultSet.getLong("RowID"), resultSet.getLong("Date")));
+            }
+          }
+        }
+      }
+
+      return watermarks;
+    }
+    else
+    {
+      throw new IllegalArgumentException(String.format("can not read from %s", SMS_DB));
+    }
+  }
+
+  private static String createContactQuery(Contact contact)
+  {
+    // build ugly sql query cause sqlite do not implement PreparedStatement.setArray()
+    return "SELECT"
+           + "  h.id AS UniqueID,"
+           + "  m.guid AS Guid,"
+           + "  m.is_from_me AS Type,"
+           + "  m.date AS Date,"
+           + "  m.text AS Text,"
+           + "  a.filename AS AttachementFilename,"
+           + "  a.mime_type AS AttachementMimetype"
+           + " FROM message m"
+           + "  LEFT JOIN handle h ON h.rowid = m.handle_id"
+           + "  LEFT JOIN message_attachment_join maj ON maj.message_id = m.rowid"
+           + "  LEFT JOIN attachment a ON maj.attachment_id = a.rowid"
+           + " WHERE h.id in (" + createEmailAndPhoneLst(contact) + ")"
+           + " ORDER BY Date";
+  }
+
+  private static Map<String, List<Contact>> createHandleIndex(Collection<Contact> contacts)
+  {
+    Map<String, List<Contact>> handleIndex = new HashMap<>();
+    for(Contact contact : contacts)
+    {
+      for(String handle : contact.getHandles())
+      {
+        handleIndex.computeIfAbsent(handle, h -> new ArrayList<>(1)).add(contact);
+      }
+    }
+
+    return handleIndex;
+  }
+
+  static Message createMessage(ResultSet resultSet)
+    throws SQLException
+  {
+    String uniqueID = resultSet.getString("UniqueID");
+    String guid = resultSet.getString("Guid");
+    int type = resultSet.getInt("Type");
+    long date = resultSet.getLong("Date");
+    String text = getUTF8(resultSet.getBytes("Text"));
+    String attachementFilename = resultSet.getString("AttachementFilename");
+    String attachementMimetype = resultSet.getString("AttachementMimetype");
+
+    if(uniqueID != null && text != null && !text.isEmpty())
+    {
+      boolean isSms = uniqueID.startsWith("+");
+      if(attachementFilename != null && !attachementFilename.isEmpty())
+      {
+        return new Message(guid, uniqueID, getDate(date), type, text, isSms, attachementFilename, attachementMimetype);
+      }
+      else
+      {
+        return new Message(guid, uniqueID, getDate(date), type, text, isSms, null, null);
+      }
+    }
+
+    return null;
+  }
+
   private static String createEmailAndPhoneLst(Contact contact)
   {
     StringBuilder builder = new StringBuilder();
@@ -103,7 +420,7 @@ public class MessageBuilder
       builder.append(sep).append('"').append(email).append('"');
       sep = ",";
     }
-    for(Long phone : contact.getPhones())
+    for(long phone : contact.getPhones())
     {
       // phones need a '+' prefix
       builder.append(sep).append('"').append('+').append(phone).append('"');
@@ -113,7 +430,7 @@ public class MessageBuilder
     return builder.toString();
   }
 
-  private static String getUTF8(byte[] text)
+  static String getUTF8(byte[] text)
   {
     if(text != null)
     {
@@ -130,7 +447,7 @@ public class MessageBuilder
     return null;
   }
 
-  private static Date getDate(long date)
+  static Date getDate(long date)
   {
     // seconds since 01-01-2001
     return new Date((date + 978307200L) * 1000L);
@@ -0,0 +1,221 @@
+package msgexport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of messages as data rows for analytics, without the template engine.
+ * Every message is one NDJSON object or CSV record with the fields contact, uniqueID, date (milliseconds since the
+ * epoch), type, sms, text and attachment (the backup filename of the attachment).
+ * Values are escaped character by character into a buffered writer, numbers are formatted without intermediate strings.
+ */
+public class MessageDataWriter
+  implements MessageRowWriter
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // valid in JSON, but not in JavaScript strings
+  private static final char LINE_SEPARATOR = 0x2028;
+  private static final char PARAGRAPH_SEPARATOR = 0x2029;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final DataFormat format;
+  private final Writer writer;
+  // scratch space of number formatting
+  private final char[] digits = new char[20];
+
+  /**
+   * Create the file and write the CSV header.
+   *
+   * @param file   the data file
+   * @param format the data format
+   */
+  public MessageDataWriter(File file, DataFormat format)
+    throws IOException
+  {
+    this(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), format);
+  }
+
+  MessageDataWriter(Writer writer, DataFormat format)
+    throws IOException
+  {
+    if(format.isCombined())
+    {
+      throw new IllegalArgumentException(String.format("can not write %s as text", format));
+    }
+    this.format = format;
+    this.writer = new BufferedWriter(writer, BUFFER_SIZE);
+
+    if(format == DataFormat.CSV)
+    {
+      this.writer.write("contact,uniqueID,date,type,sms,text,attachment\n");
+    }
+  }
+
+  @Override
+  public void write(String contact, Message message)
+    throws IOException
+  {
+    if(format == DataFormat.NDJSON)
+    {
+      writer.write("{\"contact\":");
+      writeJsonString(contact);
+      writer.write(",\"uniqueID\":");
+      writeJsonString(message.getUniqueID());
+      writer.write(",\"date\":");
+      writeLong(message.getDate().getTime());
+      writer.write(",\"type\":");
+      writeLong(message.getType());
+      writer.write(message.isSms() ? ",\"sms\":true,\"text\":" : ",\"sms\":false,\"text\":");
+      writeJsonString(message.getText());
+      writer.write(",\"attachment\":");
+      writeJsonString(message.getAttachmentFilename());
+      writer.write("}\n");
+    }
+    else
+    {
+      writeCsvString(contact);
+      writer.write(',');
+      writeCsvString(message.getUniqueID());
+      writer.write(',');
+      writeLong(message.getDate().getTime());
+      writer.write(',');
+      writeLong(message.getType());
+      writer.write(message.isSms() ? ",true," : ",false,");
+      writeCsvString(message.getText());
+      writer.write(',');
+      writeCsvString(message.getAttachmentFilename());
+      writer.write('\n');
+    }
+  }
+
+  public void flush()
+    throws IOException
+  {
+    writer.flush();
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    writer.close();
+  }
+
+  private void writeLong(long value)
+    throws IOException
+  {
+    if(value == Long.MIN_VALUE)
+    {
+      writer.write(Long.toString(value));
+      return;
+    }
+
+    boolean negative = value < 0;
+    long remaining = negative ? -value : value;
+    int pos = digits.length;
+    do
+    {
+      digits[--pos] = (char) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    while(remaining != 0);
+    if(negative)
+    {
+      digits[--pos] = '-';
+    }
+    writer.write(digits, pos, digits.length - pos);
+  }
+
+  private void writeJsonString(String value)
+    throws IOException
+  {
+    if(value == null)
+    {
+      writer.write("null");
+      return;
+    }
+
+    writer.write('"');
+    // write the unescaped runs in one piece
+    int start = 0;
+    int length = value.length();
+    for(int i = 0; i < length; i++)
+    {
+      char c = value.charAt(i);
+      if(c == '"' || c == '\\' || c < 0x20 || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR)
+      {
+        writer.write(value, start, i - start);
+        switch(c)
+        {
+          case '"':
+            writer.write("\\\"");
+            break;
+          case '\\':
+            writer.write("\\\\");
+            break;
+          case '\n':
+            writer.write("\\n");
+            break;
+          case '\r':
+            writer.write("\\r");
+            break;
+          case '\t':
+            writer.write("\\t");
+            break;
+          default:
+            writer.write("\\u");
+            writer.write(HEX[(c >> 12) & 0xf]);
+            writer.write(HEX[(c >> 8) & 0xf]);
+            writer.write(HEX[(c >> 4) & 0xf]);
+            writer.write(HEX[c & 0xf]);
+        }
+        start = i + 1;
+      }
+    }
+    writer.write(value, start, length - start);
+    writer.write('"');
+  }
+
+  private void writeCsvString(String value)
+    throws IOException
+  {
+    if(value == null)
+    {
+      return;
+    }
+
+    boolean quote = false;
+    int length = value.length();
+    for(int i = 0; i < length && !quote; i++)
+    {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+
+    if(quote)
+    {
+      // RFC 4180, quotes are doubled
+      writer.write('"');
+      int start = 0;
+      for(int i = 0; i < length; i++)
+      {
+        if(value.charAt(i) == '"')
+        {
+          writer.write(value, start, i + 1 - start);
+          start = i;
+        }
+      }
+      writer.write(value, start, length - start);
+      writer.write('"');
+    }
+    else
+    {
+      writer.write(value);
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package msgexport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Merge of the date ordered messages of a contact from several backups into one date ordered sequence without
+ * duplicates. A message is identified by its guid and attachment, or by a hash of its content if it has no guid.
+ * Only 64-bit fingerprints of the merged messages are kept in a compact hash set, so the memory is a few bytes per
+ * message of the contact, independent of the message size and of the other contacts.
+ * Messages of the same date are taken from the backups in the given order.
+ */
+public class MessageMerger
+  implements Iterator<Message>, AutoCloseable
+{
+  private final List<? extends Iterator<Message>> sources;
+  private final PriorityQueue<Source> heads = new PriorityQueue<>();
+  private final Consumer<Message> messageHandler;
+  private final FingerprintSet fingerprints = new FingerprintSet();
+  private Message next;
+  private long duplicates;
+
+  /**
+   * @param sources        the date ordered messages of every backup, closed with the merger if they are closeable
+   * @param messageHandler called for every merged message before it is returned, eg. to resolve the attachments
+   */
+  public MessageMerger(List<? extends Iterator<Message>> sources, Consumer<Message> messageHandler)
+  {
+    this.sources = sources;
+    this.messageHandler = messageHandler;
+    for(int i = 0; i < sources.size(); i++)
+    {
+      Source source = new Source(i, sources.get(i));
+      if(source.advance())
+      {
+        heads.add(source);
+      }
+    }
+  }
+
+  /**
+   * Merge the messages of a contact from several backups.
+   *
+   * @param sources the date ordered messages of every backup
+   *
+   * @return the date ordered messages without duplicates
+   */
+  public static List<Message> merge(List<List<Message>> sources)
+  {
+    if(sources.size() == 1)
+    {
+      return sources.get(0);
+    }
+
+    List<Iterator<Message>> iterators = new ArrayList<>();
+    int size = 0;
+    for(List<Message> source : sources)
+    {
+      iterators.add(source.iterator());
+      size += source.size();
+    }
+
+    List<Message> messages = new ArrayList<>(size);
+    MessageMerger merger = new MessageMerger(iterators, message -> {});
+    while(merger.hasNext())
+    {
+      messages.add(merger.next());
+    }
+    merger.close();
+    return messages;
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    while(next == null && !heads.isEmpty())
+    {
+      Source source = heads.poll();
+      Message message = source.head;
+      if(source.advance())
+      {
+        heads.add(source);
+      }
+
+      // a single backup has no duplicates
+      if(sources.size() == 1 || fingerprints.add(fingerprint(message)))
+      {
+        next = message;
+      }
+      else
+      {
+        duplicates++;
+      }
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public Message next()
+  {
+    if(!hasNext())
+    {
+      throw new NoSuchElementException();
+    }
+
+    Message message = next;
+    next = null;
+    messageHandler.accept(message);
+    return message;
+  }
+
+  @Override
+  public void close()
+  {
+    ExportMetrics.count("messages.duplicates", duplicates);
+    IllegalStateException closeException = null;
+    for(Iterator<Message> source : sources)
+    {
+      if(source instanceof AutoCloseable)
+      {
+        try
+        {
+          ((AutoCloseable) source).close();
+        }
+        catch(Exception e)
+        {
+          if(closeException == null)
+          {
+            closeException = new IllegalStateException("can not close messages", e);
+          }
+          else
+          {
+            closeException.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if(closeException != null)
+    {
+      throw closeException;
+    }
+  }
+
+  /**
+   * @return the 64-bit fingerprint of the identity of a message
+   */
+  static long fingerprint(Message message)
+  {
+    long hash = 0xcbf29ce484222325L;
+    if(message.getGuid() != null)
+    {
+      hash = hash(hash, message.getGuid());
+    }
+    else
+    {
+      hash = hash(hash, message.getUniqueID());
+      hash = hash(hash, Long.toString(message.getDate().getTime()));
+      hash = hash(hash, Integer.toString(message.getType()));
+      hash = hash(hash, message.getText());
+    }
+    // a message with several attachments has a row for every attachment
+    hash = hash(hash, message.getAttachmentFilename());
+
+    // murmur3 finalizer, spreads the bits of the FNV-1a hash
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long hash(long hash, String value)
+  {
+    if(value != null)
+    {
+      for(int i = 0; i < value.length(); i++)
+      {
+        hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+      }
+    }
+    // separates the values, null and empty are different
+    return (hash ^ (value != null ? 0x1f : 0x1e)) * 0x100000001b3L;
+  }
+
+  private static class Source
+    implements Comparable<Source>
+  {
+    private final int index;
+    private final Iterator<Message> messages;
+    private Message head;
+
+    private Source(int index, Iterator<Message> messages)
+    {
+      this.index = index;
+      this.messages = messages;
+    }
+
+    private boolean advance()
+    {
+      head = messages.hasNext() ? messages.next() : null;
+      return head != null;
+    }
+
+    @Override
+    public int compareTo(Source other)
+    {
+      int compare = head.getDate().compareTo(other.head.getDate());
+      return compare != 0 ? compare : Integer.compare(index, other.index);
+    }
+  }
+
+  /**
+   * Open addressing hash set of fingerprints in a long array, 0 marks a free slot.
+   */
+  private static class FingerprintSet
+  {
+    private long[] slots = new long[64];
+    private int size;
+
+    private boolean add(long fingerprint)
+    {
+      // 0 is the free slot
+      long value = fingerprint != 0 ? fingerprint : 1;
+      if(2 * (size + 1) > slots.length)
+      {
+        grow();
+      }
+      if(!insert(slots, value))
+      {
+        return false;
+      }
+      size++;
+      return true;
+    }
+
+    private void grow()
+    {
+      long[] newSlots = new long[slots.length * 2];
+      for(long value : slots)
+      {
+        if(value != 0)
+        {
+          insert(newSlots, value);
+        }
+      }
+      slots = newSlots;
+    }
+
+    private static boolean insert(long[] slots, long value)
+    {
+      int mask = slots.length - 1;
+      int index = (int) value & mask;
+      while(slots[index] != 0)
+      {
+        if(slots[index] == value)
+        {
+          return false;
+        }
+        index = (index + 1) & mask;
+      }
+      slots[index] = value;
+      return true;
+    }
+  }
+}
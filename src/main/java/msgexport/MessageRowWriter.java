@@ -0,0 +1,24 @@
+package msgexport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writer of messages as data rows. Writers are not thread-safe.
+ */
+public interface MessageRowWriter
+  extends Closeable
+{
+  void write(String contact, Message message)
+    throws IOException;
+
+  /**
+   * Create the writer of a data file.
+   */
+  static MessageRowWriter create(File file, DataFormat format)
+    throws IOException
+  {
+    return format == DataFormat.SQLITE ? new SearchDatabaseWriter(file) : new MessageDataWriter(file, format);
+  }
+}
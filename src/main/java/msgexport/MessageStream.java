@@ -0,0 +1,90 @@
+package msgexport;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * A forward-only sequence of messages backed by an open result set.
+ * Every message is created when it is requested, so only the current message is held in memory.
+ */
+public class MessageStream
+  implements Iterator<Message>, AutoCloseable
+{
+  private final Connection connection;
+  private final Statement statement;
+  private final ResultSet resultSet;
+  private final Consumer<Message> messageHandler;
+  private Message next;
+  private long rows;
+
+  /**
+   * @param connection     the connection, closed with the stream
+   * @param statement      the statement, closed with the stream
+   * @param resultSet      the result set of the messages
+   * @param messageHandler called for every message before it is returned, eg. to resolve the attachments
+   */
+  MessageStream(Connection connection, Statement statement, ResultSet resultSet, Consumer<Message> messageHandler)
+  {
+    this.connection = connection;
+    this.statement = statement;
+    this.resultSet = resultSet;
+    this.messageHandler = messageHandler;
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if(next == null)
+    {
+      try
+      {
+        while(next == null && resultSet.next())
+        {
+          rows++;
+          next = MessageBuilder.createMessage(resultSet);
+        }
+      }
+      catch(SQLException e)
+      {
+        throw new IllegalStateException("can not read next message", e);
+      }
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public Message next()
+  {
+    if(!hasNext())
+    {
+      throw new NoSuchElementException();
+    }
+
+    Message message = next;
+    next = null;
+    messageHandler.accept(message);
+    return message;
+  }
+
+  @Override
+  public void close()
+    throws SQLException
+  {
+    ExportMetrics.count("rows.scanned", rows);
+    try
+    {
+      resultSet.close();
+      statement.close();
+    }
+    finally
+    {
+      connection.close();
+    }
+  }
+}
@@ -1,34 +1,91 @@
 package msgexport;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifIFD0Directory;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
+import freemarker.template.TemplateException;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class MsgExportApplication
 {
   private static final Logger LOGGER = LoggerFactory.getLogger(MsgExportApplication.class);
 
   private static final int IMAGE_MAX_WIDTH = 600;
+  // the displayed width of the images in ioback.ftl
+  private static final int THUMBNAIL_WIDTH = 300;
+  // the exported widths in descending order, the thumbnail is resized from the image
+  private static final int[] IMAGE_WIDTHS = {IMAGE_MAX_WIDTH};
+  private static final Scalr.Method[] IMAGE_METHODS = {Scalr.Method.ULTRA_QUALITY};
+  private static final int[] THUMBNAIL_WIDTHS = {IMAGE_MAX_WIDTH, THUMBNAIL_WIDTH};
+  private static final Scalr.Method[] THUMBNAIL_METHODS = {Scalr.Method.ULTRA_QUALITY, Scalr.Method.BALANCED};
+
+  // persistent cache of transcoded images, null if not configured
+  private ImageCache imageCache;
+  // store of image files in the export directory, null if the images are inlined
+  private MediaStore mediaStore;
+  // decode large images subsampled to about twice the export width
+  private boolean subsample;
+  // memory budget of the decoded images, shared by all workers, null without a budget
+  private ImageMemoryBudget imageMemory;
+  // read-ahead of the image files in path order, null to read them when they are decoded
+  private AttachmentPrefetcher prefetcher;
+  // link the images from lazy loaded thumbnails
+  private boolean thumbnails;
+  // link the attachments which are not shown as images
+  private boolean attachments;
+  // split the messages of a contact into pages of a maximal size or by month, 0 and false for one file per contact
+  private int pageSize;
+  private boolean pageMonthly;
+  private Template indexTemplate;
+  // export data rows instead of HTML, null for HTML
+  private DataFormat dataFormat;
+  // the data file of all contacts, null for a file per contact
+  private MessageRowWriter combinedWriter;
+  // the finished work of the export, to resume it after an interruption, null without --resume
+  private ExportJournal journal;
 
   public static void main(String[] args)
     throws Exception
@@ -50,61 +107,625 @@ public class MsgExportApplication
     // load sqlite driver
     Class.forName("org.sqlite.JDBC");
 
-    if(args.length < 3)
+    ExportOptions options = new ExportOptions(args);
+    List<String> parameters = options.getParameters();
+    if(parameters.size() < 3)
     {
-      throw new IllegalArgumentException("missing application parameter. usage: backup-dir country-code area-code [export-dir]");
+      throw new IllegalArgumentException("missing application parameter. usage: " + ExportOptions.USAGE);
     }
 
-    // iOS backup directory
-    File backupDir = new File(args[0]);
-    if(!(backupDir.exists() && backupDir.isDirectory() && backupDir.canRead()))
+    // iOS backup directories, the first one and the backups merged into it
+    List<File> backupDirs = new ArrayList<>();
+    backupDirs.add(new File(parameters.get(0)));
+    for(String mergeDir : options.getMergeDirs())
+    {
+      backupDirs.add(new File(mergeDir));
+    }
+    for(File backupDir : backupDirs)
     {
-      throw new IllegalArgumentException(String.format("can not read user backup directory '%s'", args[0]));
+      if(!(backupDir.exists() && backupDir.isDirectory() && backupDir.canRead()))
+      {
+        throw new IllegalArgumentException(String.format("can not read user backup directory '%s'", backupDir));
+      }
     }
 
-    String countryCode = args[1];
-    String areaCode = args[2];
+    String countryCode = parameters.get(1);
+    String areaCode = parameters.get(2);
 
-    File destDir = new File(args.length > 3 ? args[3] : ".");
+    File destDir = new File(options.getParameter(3, "."));
     if(!(destDir.exists() && destDir.isDirectory() && destDir.canWrite()))
     {
-      throw new IllegalArgumentException(String.format("can not to write dest directory '%s'", args[1]));
+      throw new IllegalArgumentException(String.format("can not to write dest directory '%s'", destDir));
     }
 
-    // setup freemarker template engine
-    Configuration cfg = new Configuration(Configuration.VERSION_2_3_23);
-    cfg.setClassLoaderForTemplateLoading(this.getClass().getClassLoader(), "templates");
-    cfg.setDefaultEncoding("UTF-8");
-    Template template = cfg.getTemplate("ioback.ftl");
-
     ContactBuilder contactBuilder = new ContactBuilder(countryCode, areaCode);
 
-    for(Contact contact : contactBuilder.readContacts(backupDir))
+    try (BackupDatabases databases = new BackupDatabases(options.getMmapSize(), options.getCacheSize(), options.isInMemory()))
     {
-      List<Message> messages = MessageBuilder.readMessages(backupDir, contact);
+      export(options, backupDirs, destDir, contactBuilder, databases);
+    }
+  }
 
-      if(!messages.isEmpty())
+  private void export(ExportOptions options, List<File> backupDirs, File destDir, ContactBuilder contactBuilder, BackupDatabases databases)
+    throws Exception
+  {
+    ExportMetrics.reset(options.isJfr());
+
+    // setup freemarker template engine for custom templates and the index pages
+    Configuration cfg = createConfiguration();
+    Renderer<ContactMessages> template;
+    String templateFile = options.getOption("template", null);
+    if(templateFile != null)
+    {
+      try (Reader reader = new InputStreamReader(new FileInputStream(templateFile), StandardCharsets.UTF_8))
       {
-        LOGGER.info(String.format("export %s", contact.getName()));
+        template = new Template(new File(templateFile).getName(), reader, cfg)::process;
+      }
+    }
+    else if(options.isFreemarker())
+    {
+      template = cfg.getTemplate("ioback.ftl")::process;
+    }
+    else
+    {
+      template = new HtmlRenderer();
+    }
+
+    pageSize = options.getPageSize();
+    pageMonthly = options.isPageMonthly();
+    indexTemplate = pageSize > 0 || pageMonthly ? cfg.getTemplate("ioback-index.ftl") : null;
+
+    setupImages(options, destDir);
+    prefetcher = options.getPrefetch() > 0 ? new AttachmentPrefetcher(options.getPrefetch()) : null;
+
+    dataFormat = options.getFormat();
+    boolean combined = options.isCombined() || dataFormat != null && dataFormat.isCombined();
+    if(options.isCombined() && dataFormat == null)
+    {
+      throw new IllegalArgumentException("option --combined needs --format=ndjson, --format=csv or --format=sqlite");
+    }
+    if(combined && (options.isIncremental() || options.isResume()))
+    {
+      throw new IllegalArgumentException("one file for all contacts can not be exported with --incremental or --resume");
+    }
+    if(options.isStreaming() && (options.getPageSize() > 0 || options.isPageMonthly()))
+    {
+      // the pages and the index need the messages of a contact before the first page is written
+      throw new IllegalArgumentException("paged message files can not be exported with --streaming");
+    }
+    if(backupDirs.size() > 1 && options.isIncremental())
+    {
+      // the watermarks are message ROWIDs of one backup
+      throw new IllegalArgumentException("merged backups can not be exported with --incremental");
+    }
+
+    long start = ExportMetrics.start();
+    List<BackupIndex> backups = new ArrayList<>();
+    for(File backupDir : backupDirs)
+    {
+      backups.add(BackupIndex.load(backupDir, databases));
+    }
+    BackupIndex backup = backups.get(0);
+    ExportMetrics.stop("backup.index", start);
+
+    start = ExportMetrics.start();
+    Set<Contact> contacts = contactBuilder.readContacts(backups);
+    ExportMetrics.stop("contacts.read", start);
+    ExportMetrics.count("contacts.read", contacts.size());
+
+    // export only contacts with messages above the watermarks of the last run
+    ExportState state = options.isIncremental() ? ExportState.load(destDir) : null;
+    Map<String, ExportState.Watermark> handleWatermarks = null;
+    if(state != null)
+    {
+      start = ExportMetrics.start();
+      handleWatermarks = MessageBuilder.readWatermarks(backup, state.getRowID());
+      ExportMetrics.stop("messages.watermarks", start);
+      int contactCount = contacts.size();
+      contacts = state.selectChanged(contacts, handleWatermarks);
+      LOGGER.info(String.format("export %d of %d contacts with new messages", contacts.size(), contactCount));
+    }
+    Map<String, ExportState.Watermark> newWatermarks = handleWatermarks;
+
+    // files of an interrupted export are incomplete if they were not renamed
+    if(options.isResume())
+    {
+      ExportJournal.deleteTmpFiles(destDir);
+      if(mediaStore != null)
+      {
+        ExportJournal.deleteTmpFiles(new File(destDir, MediaStore.MEDIA_DIR));
+      }
+    }
+
+    // read all messages with one scan or query every contact separately
+    Map<Contact, List<Message>> allMessages = null;
+    if(options.isSinglePass() && !options.isStreaming())
+    {
+      start = ExportMetrics.start();
+      allMessages = readAllMessages(backups, contacts, options.getPartitions());
+      ExportMetrics.stop("messages.query", start);
+    }
+    Map<Contact, List<Message>> contactMessages = allMessages;
+
+    // contacts and their images are processed by bounded worker pools, or in the calling thread for a single worker
+    int threads = options.getThreads();
+    ExecutorService contactExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    ExecutorService imageExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    if(threads > 1)
+    {
+      // the ImageIO disk cache is a shared resource and only slows down concurrent decoding
+      ImageIO.setUseCache(false);
+    }
+
+    File combinedFile = combined ? new File(destDir, String.format("messages.%s", dataFormat.getExtension())) : null;
+    // the journal forces every exported contact to the disk, it is only kept to resume the export
+    if(options.isResume())
+    {
+      journal = ExportJournal.open(destDir);
+    }
+    else
+    {
+      ExportJournal.discard(destDir);
+    }
+    try
+    {
+      combinedWriter = combinedFile != null ? MessageRowWriter.create(combinedFile, dataFormat) : null;
+
+      List<Future<?>> futures = new ArrayList<>();
+      for(Contact contact : contacts)
+      {
+        if(journal != null && journal.isExported(contact))
+        {
+          LOGGER.info(String.format("skip exported %s", contact.getName()));
+          if(state != null)
+          {
+            state.exported(contact, newWatermarks);
+          }
+          continue;
+        }
 
-        if(hasAttachements(messages))
+        Callable<Void> task = () ->
         {
-          appendAttachements(backupDir, messages);
+          long contactStart = ExportMetrics.start();
+          boolean exported;
+          if(options.isStreaming())
+          {
+            exported = dataFormat != null ? exportData(backups, destDir, contact) : exportContact(backups, destDir, template, contact);
+          }
+          else
+          {
+            List<Message> messages;
+            if(contactMessages != null)
+            {
+              messages = contactMessages.getOrDefault(contact, Collections.emptyList());
+            }
+            else
+            {
+              long queryStart = ExportMetrics.start();
+              messages = readMessages(backups, contact);
+              ExportMetrics.stop("messages.query", queryStart);
+            }
+            exported = dataFormat != null
+                       ? exportData(destDir, contact, sortDate(messages).iterator())
+                       : exportContact(backups, destDir, template, contact, messages, imageExecutor != null ? imageExecutor : Runnable::run);
+          }
+          if(exported)
+          {
+            if(journal != null)
+            {
+              journal.exported(contact);
+            }
+            if(state != null)
+            {
+              state.exported(contact, newWatermarks);
+            }
+          }
+          ExportMetrics.histogram("contact.export", contactStart);
+          return null;
+        };
+
+        if(contactExecutor != null)
+        {
+          futures.add(contactExecutor.submit(task));
         }
+        else
+        {
+          task.call();
+        }
+      }
 
+      for(Future<?> future : futures)
+      {
         try
         {
-          try (FileWriter fileWriter = new FileWriter(new File(destDir, String.format("%s.html", contact.getName()))))
+          future.get();
+        }
+        catch(ExecutionException e)
+        {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+
+      if(state != null)
+      {
+        state.save();
+      }
+      if(journal != null)
+      {
+        journal.delete();
+      }
+    }
+    finally
+    {
+      if(journal != null)
+      {
+        journal.close();
+        journal = null;
+      }
+      if(prefetcher != null)
+      {
+        prefetcher.close();
+        prefetcher = null;
+      }
+      if(contactExecutor != null)
+      {
+        contactExecutor.shutdownNow();
+        imageExecutor.shutdownNow();
+      }
+      if(imageCache != null)
+      {
+        imageCache.logStatistics();
+      }
+      if(combinedWriter != null)
+      {
+        combinedWriter.close();
+        combinedWriter = null;
+        ExportMetrics.count("bytes.written", combinedFile.length());
+      }
+      ExportMetrics.writeReport(destDir);
+    }
+  }
+
+  static Configuration createConfiguration()
+  {
+    Configuration cfg = new Configuration(Configuration.VERSION_2_3_23);
+    cfg.setClassLoaderForTemplateLoading(MsgExportApplication.class.getClassLoader(), "templates");
+    cfg.setDefaultEncoding("UTF-8");
+    return cfg;
+  }
+
+  /**
+   * setup the image processing of the export, the image benchmarks use the same setup
+   */
+  void setupImages(ExportOptions options, File destDir)
+  {
+    String imageCacheDir = options.getOption("image-cache", null);
+    imageCache = imageCacheDir != null ? new ImageCache(new File(imageCacheDir), options.getImageCacheSize()) : null;
+
+    // thumbnails link to image files, browsers do not open inline images as links
+    thumbnails = options.isThumbnails();
+    attachments = options.isAttachments();
+    mediaStore = options.isMedia() || thumbnails || attachments ? new MediaStore(destDir) : null;
+    subsample = options.isSubsample();
+    imageMemory = new ImageMemoryBudget(options.getImageMemory());
+  }
+
+  /**
+   * Export the messages of a contact. The template is shared by all workers, this is safe as the renderers and
+   * FreeMarker templates are immutable and the configuration is not changed after setup.
+   *
+   * @return false if the message file could not be written
+   */
+  private boolean exportContact(List<BackupIndex> backups, File destDir, Renderer<ContactMessages> template, Contact contact, List<Message> messages, Executor imageExecutor)
+  {
+    if(!messages.isEmpty())
+    {
+      LOGGER.info(String.format("export %s", contact.getName()));
+
+      if(hasAttachements(messages))
+      {
+        appendAttachements(backups, messages, imageExecutor);
+      }
+
+      if(pageSize > 0 || pageMonthly)
+      {
+        return exportPages(destDir, template, contact, Page.split(sortDate(messages), pageSize, pageMonthly), imageExecutor);
+      }
+
+      try
+      {
+        File file = new File(destDir, String.format("%s.html", contact.getName()));
+        long start = ExportMetrics.start();
+        renderFile(template, new ContactMessages(contact, sortDate(messages)), file);
+        ExportMetrics.stop("template.render", start);
+        ExportMetrics.count("bytes.written", file.length());
+      }
+      catch(Exception e)
+      {
+        LOGGER.warn(String.format("can not render message file for %s", contact.getName()), e);
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Export the pages of a contact and an index page linking them. Every page is rendered independently as a task of
+   * the image executor, so the pages are rendered concurrently with --threads and sequentially by default.
+   *
+   * @return false if a page could not be written
+   */
+  private boolean exportPages(File destDir, Renderer<ContactMessages> template, Contact contact, List<List<Message>> pageMessages, Executor executor)
+  {
+    List<Page> pages = new ArrayList<>();
+    for(List<Message> messages : pageMessages)
+    {
+      pages.add(new Page(pages.size() + 1, pageMessages.size(), contact.getName(), messages));
+    }
+
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+    futures.add(CompletableFuture.supplyAsync(
+      () -> renderPage(indexTemplate::process, new ContactPages(contact, pages), new File(destDir, Page.getIndexFilename(contact.getName()))), executor));
+    for(Page page : pages)
+    {
+      futures.add(CompletableFuture.supplyAsync(
+        () -> renderPage(template, new ContactMessages(contact, page), new File(destDir, page.getFilename())), executor));
+    }
+
+    boolean exported = true;
+    for(CompletableFuture<Boolean> future : futures)
+    {
+      exported &= future.join();
+    }
+    return exported;
+  }
+
+  private <T> boolean renderPage(Renderer<T> template, T model, File file)
+  {
+    try
+    {
+      long start = ExportMetrics.start();
+      renderFile(template, model, file);
+      ExportMetrics.stop("template.render", start);
+      ExportMetrics.count("bytes.written", file.length());
+      return true;
+    }
+    catch(Exception e)
+    {
+      LOGGER.warn(String.format("can not render message file %s", file.getName()), e);
+      return false;
+    }
+  }
+
+  /**
+   * Render into a temporary file which replaces the file when it is complete, so an interrupted export never leaves a
+   * truncated file.
+   */
+  private <T> void renderFile(Renderer<T> template, T model, File file)
+    throws IOException, TemplateException
+  {
+    File tmpFile = File.createTempFile(file.getName(), ExportJournal.TMP_SUFFIX, file.getAbsoluteFile().getParentFile());
+    try
+    {
+      try (Writer fileWriter = new BufferedWriter(new FileWriter(tmpFile)))
+      {
+        template.render(model, fileWriter);
+      }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmpFile.toPath());
+    }
+  }
+
+  /**
+   * Export the messages of a contact as data rows, streamed from the database.
+   *
+   * @return false if the data file could not be written
+   */
+  private boolean exportData(List<BackupIndex> backups, File destDir, Contact contact)
+    throws SQLException
+  {
+    long start = ExportMetrics.start();
+    try (MessageMerger messages = streamMessages(backups, contact, message -> {}))
+    {
+      ExportMetrics.stop("messages.query", start);
+      return exportData(destDir, contact, messages);
+    }
+  }
+
+  /**
+   * Export the messages of a contact as data rows, to its own file or to the combined file of all contacts.
+   * The attachments are referenced by their backup filename and not processed.
+   *
+   * @return false if the data file could not be written
+   */
+  private boolean exportData(File destDir, Contact contact, Iterator<Message> messages)
+  {
+    if(messages.hasNext())
+    {
+      LOGGER.info(String.format("export %s", contact.getName()));
+
+      long start = ExportMetrics.start();
+      long rows = 0;
+      try
+      {
+        if(combinedWriter != null)
+        {
+          // the rows of a contact are kept together
+          synchronized(combinedWriter)
+          {
+            while(messages.hasNext())
+            {
+              combinedWriter.write(contact.getName(), messages.next());
+              rows++;
+            }
+          }
+        }
+        else
+        {
+          File file = new File(destDir, String.format("%s.%s", contact.getName(), dataFormat.getExtension()));
+          File tmpFile = File.createTempFile(file.getName(), ExportJournal.TMP_SUFFIX, destDir);
+          try
           {
-            template.process(new ContactMessages(contact, sortDate(messages)), fileWriter);
+            try (MessageRowWriter writer = MessageRowWriter.create(tmpFile, dataFormat))
+            {
+              while(messages.hasNext())
+              {
+                writer.write(contact.getName(), messages.next());
+                rows++;
+              }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
           }
+          finally
+          {
+            Files.deleteIfExists(tmpFile.toPath());
+          }
+          ExportMetrics.count("bytes.written", file.length());
+        }
+      }
+      catch(IOException e)
+      {
+        LOGGER.warn(String.format("can not write data file for %s", contact.getName()), e);
+        return false;
+      }
+      ExportMetrics.stop("data.write", start);
+      ExportMetrics.count("rows.written", rows);
+    }
+
+    return true;
+  }
+
+  /**
+   * Export the messages of a contact while they are read from the database. The attachments are resolved for every
+   * message when it is rendered, so only the current message is held in memory.
+   *
+   * @return false if the message file could not be written
+   */
+  private boolean exportContact(List<BackupIndex> backups, File destDir, Renderer<ContactMessages> template, Contact contact)
+    throws SQLException
+  {
+    long start = ExportMetrics.start();
+    try (MessageMerger messages = streamMessages(backups, contact, message -> appendAttachement(backups, message)))
+    {
+      ExportMetrics.stop("messages.query", start);
+      if(messages.hasNext())
+      {
+        LOGGER.info(String.format("export %s", contact.getName()));
+
+        try
+        {
+          // the rendering includes reading the messages and their attachments
+          File file = new File(destDir, String.format("%s.html", contact.getName()));
+          start = ExportMetrics.start();
+          renderFile(template, new ContactMessages(contact, messages), file);
+          ExportMetrics.stop("template.render", start);
+          ExportMetrics.count("bytes.written", file.length());
         }
         catch(Exception e)
         {
           LOGGER.warn(String.format("can not render message file for %s", contact.getName()), e);
+          return false;
         }
       }
     }
+
+    return true;
+  }
+
+  /**
+   * Read the messages of all contacts from every backup with one scan per backup.
+   *
+   * @return the messages of every contact with at least one message, merged by date without duplicates
+   */
+  private Map<Contact, List<Message>> readAllMessages(List<BackupIndex> backups, Collection<Contact> contacts, int partitions)
+    throws SQLException
+  {
+    if(backups.size() == 1)
+    {
+      return MessageBuilder.readAllMessages(backups.get(0), contacts, partitions);
+    }
+
+    Map<Contact, List<List<Message>>> backupMessages = new HashMap<>();
+    for(BackupIndex backup : backups)
+    {
+      for(Map.Entry<Contact, List<Message>> entry : MessageBuilder.readAllMessages(backup, contacts, partitions).entrySet())
+      {
+        backupMessages.computeIfAbsent(entry.getKey(), c -> new ArrayList<>()).add(sortDate(entry.getValue()));
+      }
+    }
+
+    Map<Contact, List<Message>> contactMessages = new HashMap<>();
+    for(Map.Entry<Contact, List<List<Message>>> entry : backupMessages.entrySet())
+    {
+      contactMessages.put(entry.getKey(), MessageMerger.merge(entry.getValue()));
+    }
+    return contactMessages;
+  }
+
+  /**
+   * Read the messages of a contact from every backup.
+   *
+   * @return the messages merged by date without duplicates
+   */
+  private List<Message> readMessages(List<BackupIndex> backups, Contact contact)
+    throws SQLException
+  {
+    List<List<Message>> backupMessages = new ArrayList<>();
+    for(BackupIndex backup : backups)
+    {
+      backupMessages.add(MessageBuilder.readMessages(backup, contact));
+    }
+    return MessageMerger.merge(backupMessages);
+  }
+
+  /**
+   * Open the message streams of a contact in every backup, merged by date without duplicates.
+   *
+   * @param messageHandler called for every merged message before it is returned
+   */
+  private MessageMerger streamMessages(List<BackupIndex> backups, Contact contact, Consumer<Message> messageHandler)
+    throws SQLException
+  {
+    List<MessageStream> streams = new ArrayList<>();
+    try
+    {
+      for(BackupIndex backup : backups)
+      {
+        streams.add(MessageBuilder.streamMessages(backup, contact, message -> {}));
+      }
+    }
+    catch(SQLException e)
+    {
+      for(MessageStream stream : streams)
+      {
+        stream.close();
+      }
+      throw e;
+    }
+    return new MessageMerger(streams, messageHandler);
+  }
+
+  /**
+   * Lookup the file of an attachment in the backups. The first backup with the file is used for the messages of all
+   * backups, so an attachment is processed once.
+   *
+   * @return the file or null if no backup has the file
+   */
+  private File getAttachmentFile(List<BackupIndex> backups, String attachmentFilename)
+  {
+    for(BackupIndex backup : backups)
+    {
+      File file = backup.getAttachmentFile(attachmentFilename);
+      if(file != null)
+      {
+        return file;
+      }
+    }
+    return null;
   }
 
   private boolean hasAttachements(List<Message> messages)
@@ -112,70 +733,75 @@ public class MsgExportApplication
     return messages.stream().anyMatch(message -> message.getAttachmentFilename() != null);
   }
 
-  private void appendAttachements(File backupDir, List<Message> messages)
+  private void appendAttachements(List<BackupIndex> backups, List<Message> messages, Executor imageExecutor)
   {
-    messages.forEach(
-      message ->
+    List<Message> attachmentMessages = messages.stream()
+      .filter(message -> message.getAttachmentFilename() != null)
+      .collect(Collectors.toList());
+
+    if(prefetcher != null)
+    {
+      // the image files are read ahead in path order and the workers take them in the same order
+      Map<Message, File> imageFiles = new IdentityHashMap<>();
+      for(Message message : attachmentMessages)
       {
-        String attachmentFilename = message.getAttachmentFilename();
-        if(attachmentFilename != null && !attachmentFilename.isEmpty())
+        File imageFile = message.isImage() && !message.getAttachmentFilename().isEmpty() ? getAttachmentFile(backups, message.getAttachmentFilename()) : null;
+        if(imageFile != null)
         {
-          String sha1 = Util.sha1(attachmentFilename.replace("~/Library/", "MediaDomain-Library/"));
+          imageFiles.put(message, imageFile);
+        }
+      }
+      attachmentMessages.sort(Comparator.comparing(imageFiles::get, Comparator.nullsLast(Comparator.naturalOrder())));
+      prefetcher.prefetch(imageFiles.values());
+    }
+
+    CompletableFuture.allOf(
+      attachmentMessages.stream()
+        .map(message -> CompletableFuture.runAsync(() -> appendAttachement(backups, message), imageExecutor))
+        .toArray(CompletableFuture[]::new))
+      .join();
+  }
 
-          File imageFile = new File(backupDir, Util.createFilename(sha1));
-          if(imageFile.exists() && imageFile.isFile() && imageFile.canRead())
+  private void appendAttachement(List<BackupIndex> backups, Message message)
+  {
+    String attachmentFilename = message.getAttachmentFilename();
+    if(attachmentFilename != null && !attachmentFilename.isEmpty())
+    {
+      File imageFile = getAttachmentFile(backups, attachmentFilename);
+      if(imageFile != null)
+      {
+        // the backup filename is the sha1 of domain and path
+        String sha1 = imageFile.getName();
+        try
+        {
+          // the image and its thumbnail are created from one read and decode of the file
+          byte[] data = prefetcher != null && message.isImage() ? prefetcher.take(imageFile) : null;
+          String[] imageSrcs = message.isImage() ? createImageSrcs(sha1, imageFile, data, message.getAttachmentMimetype()) : null;
+          if(imageSrcs != null)
           {
-            try
-            {
-              ImageData imageData = getImageData(imageFile);
-              if(imageData != null)
-              {
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                if(imageData.getImage().getWidth() <= IMAGE_MAX_WIDTH && imageData.getOrientation() == 1)
-                {
-                  Files.copy(imageFile.toPath(), byteArrayOutputStream);
-                }
-                else
-                {
-                  BufferedImage image = imageData.getImage();
-
-                  // rotate to normal image orientation
-                  for(Scalr.Rotation rotation : calcRotations(imageData.getOrientation()))
-                  {
-                    image = Scalr.rotate(image, rotation);
-                  }
-                  // resize image to fit in HTML page and reduce size
-                  if(imageData.getImage().getWidth() > IMAGE_MAX_WIDTH)
-                  {
-                    image = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.FIT_TO_WIDTH, IMAGE_MAX_WIDTH);
-                  }
-
-                  ImageIO.write(image, getImageInformalName(message.getAttachmentMimetype()), byteArrayOutputStream);
-                }
-
-                // store new image data as inline data
-                message.setImageData(createImageData(message.getAttachmentMimetype(), byteArrayOutputStream.toByteArray()));
-              }
-              else
-              {
-                // todo handle some other data types
-              }
-            }
-            catch(IOException e)
+            message.setImageData(imageSrcs[0]);
+            if(thumbnails)
             {
-              LOGGER.error(String.format("can not copy image %s", sha1), e);
-            }
-            catch(ImageProcessingException e)
-            {
-              LOGGER.error("", e); // todo need more information
+              message.setThumbnailData(imageSrcs[1]);
             }
           }
-          else
+          else if(attachments)
           {
-            LOGGER.info(String.format("can read file for attachment %s", attachmentFilename));
+            // other types and undecodable images, eg. HEIC, are linked without reading them
+            String extension = getAttachmentExtension(message);
+            message.setAttachmentData(mediaStore.link(imageFile, extension != null ? sha1 + "." + extension : sha1));
           }
         }
-      });
+        catch(IOException e)
+        {
+          LOGGER.error(String.format("can not copy attachment %s", sha1), e);
+        }
+      }
+      else
+      {
+        LOGGER.info(String.format("can read file for attachment %s", attachmentFilename));
+      }
+    }
   }
 
   private String createImageData(String mimetype, byte[] image)
@@ -183,6 +809,27 @@ public class MsgExportApplication
     return String.format("data:%s;base64,%s", mimetype, Base64.getEncoder().encodeToString(image));
   }
 
+  private String getMediaExtension(String mimetype)
+  {
+    String subtype = mimetype.substring(mimetype.indexOf('/') + 1).toLowerCase();
+    return subtype.matches("[a-z0-9.+-]+") ? subtype : "bin";
+  }
+
+  private String getAttachmentExtension(Message message)
+  {
+    String name = message.getAttachmentName();
+    int dot = name.lastIndexOf('.');
+    if(dot >= 0)
+    {
+      String extension = name.substring(dot + 1).toLowerCase();
+      if(extension.matches("[a-z0-9]+"))
+      {
+        return extension;
+      }
+    }
+    return message.getAttachmentMimetype() != null ? getMediaExtension(message.getAttachmentMimetype()) : null;
+  }
+
   private String getImageInformalName(String mimetype)
   {
     switch(mimetype.toLowerCase())
@@ -226,24 +873,320 @@ public class MsgExportApplication
     }
   }
 
-  private ImageData getImageData(File imageFile)
-    throws ImageProcessingException, IOException
+  /**
+   * create the image source of an attachment and with --thumbnails of its thumbnail, either as inline data or as
+   * files in the media directory
+   *
+   * @param sha1      the sha1 of the attachment in the backup
+   * @param imageFile the image file
+   * @param data      the content of the image file if it is read ahead, null to read the file
+   * @param mimetype  the mimetype of the image
+   *
+   * @return the image source and the thumbnail source or null if the file is not a readable image
+   */
+  String[] createImageSrcs(String sha1, File imageFile, byte[] data, String mimetype)
+    throws IOException
+  {
+    return createImageSrcs(sha1, imageFile, data, mimetype, thumbnails ? THUMBNAIL_WIDTHS : IMAGE_WIDTHS, thumbnails ? THUMBNAIL_METHODS : IMAGE_METHODS);
+  }
+
+  /**
+   * create the image sources of an attachment resized to several maximal widths. The image file is probed and decoded
+   * once, every width is resized from the image of the next larger width.
+   *
+   * @param data      the content of the image file if it is read ahead, null to read the file
+   * @param maxWidths the maximal widths of the images in descending order
+   * @param methods   the resize method of every width, cheaper methods are good enough for small images
+   *
+   * @return the image source of every width or null if the file is not a readable image
+   */
+  private String[] createImageSrcs(String sha1, File imageFile, byte[] data, String mimetype, int[] maxWidths, Scalr.Method[] methods)
+    throws IOException
   {
-    BufferedImage image = ImageIO.read(imageFile);
-    if(image != null)
+    // stored images of an interrupted export are not processed again
+    String[] imageSrcs = new String[maxWidths.length];
+    String[] journalKeys = new String[maxWidths.length];
+    boolean complete = true;
+    for(int i = 0; i < maxWidths.length; i++)
     {
-      int orientation = 1; // normal, no rotation needed
-      Metadata metadata = ImageMetadataReader.readMetadata(imageFile.getAbsoluteFile());
-      ExifIFD0Directory exifIFD0Directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-      if(exifIFD0Directory != null && exifIFD0Directory.getInteger(ExifIFD0Directory.TAG_ORIENTATION) != null)
+      String journalKey = journal != null && mediaStore != null ? String.format("%s-%d", sha1, maxWidths[i]) : null;
+      String src = journalKey != null ? journal.getAttachment(journalKey) : null;
+      if(src != null && mediaStore.contains(src))
+      {
+        imageSrcs[i] = src;
+      }
+      else
       {
-        orientation = Math.min(Math.max(exifIFD0Directory.getInteger(ExifIFD0Directory.TAG_ORIENTATION), 1), 8);
+        journalKeys[i] = journalKey;
+        complete = false;
       }
+    }
+    if(complete)
+    {
+      return imageSrcs;
+    }
 
-      return new ImageData(image, orientation);
+    if(!processImage(sha1, imageFile, data, mimetype, maxWidths, methods, imageSrcs))
+    {
+      return null;
     }
+    for(int i = 0; i < maxWidths.length; i++)
+    {
+      if(journalKeys[i] != null)
+      {
+        journal.attachment(journalKeys[i], imageSrcs[i]);
+      }
+    }
+    return imageSrcs;
+  }
 
-    return null;
+  /**
+   * create the missing image sources of an attachment
+   *
+   * @param imageSrcs the image source of every width, null for the sources to create
+   *
+   * @return false if the file is not a readable image
+   */
+  private boolean processImage(String sha1, File imageFile, byte[] data, String mimetype, int[] maxWidths, Scalr.Method[] methods, String[] imageSrcs)
+    throws IOException
+  {
+    // read width and orientation from the header, the pixels are only decoded for a rotation or resize
+    long start = ExportMetrics.start();
+    ImageProbe imageProbe = data != null ? ImageProbe.probe(data, imageFile) : ImageProbe.probe(imageFile);
+    ExportMetrics.stop("images.probe", start);
+    if(!imageProbe.isDecodable())
+    {
+      return false;
+    }
+
+    int orientation = imageProbe.getOrientation();
+    int width = imageProbe.getWidth();
+    byte[][] images = new byte[maxWidths.length][];
+    String[] cacheKeys = new String[maxWidths.length];
+    // the largest width which is neither cached nor copied, it determines the decode subsampling, 0 for no decoding
+    int decodeWidth = 0;
+    for(int i = 0; i < maxWidths.length; i++)
+    {
+      // only transcoded images are cached, a copied file is read from the backup
+      if(imageSrcs[i] == null && !isCopied(width, orientation, maxWidths[i]))
+      {
+        cacheKeys[i] = imageCache != null ? ImageCache.createKey(sha1, imageFile, maxWidths[i], orientation, subsample, methods[i]) : null;
+        images[i] = cacheKeys[i] != null ? imageCache.get(cacheKeys[i]) : null;
+        if(images[i] == null)
+        {
+          decodeWidth = Math.max(decodeWidth, maxWidths[i]);
+        }
+      }
+    }
+
+    // the decoded image takes its estimated memory from the budget, a copied file is not decoded
+    int permits = imageMemory != null && decodeWidth > 0 ? imageMemory.acquire(estimateFootprint(imageProbe, decodeWidth)) : 0;
+    try
+    {
+      BufferedImage bufferedImage = null;
+      if(decodeWidth > 0)
+      {
+        start = ExportMetrics.start();
+        // an unknown header is decoded completely to get the width
+        bufferedImage = decodeImage(createImageInputStream(imageFile, data), orientation, width < 0 ? 0 : decodeWidth);
+        ExportMetrics.stop("images.decode", start);
+        ExportMetrics.count("bytes.read", imageFile.length());
+        if(bufferedImage == null)
+        {
+          return false;
+        }
+        if(width < 0)
+        {
+          width = bufferedImage.getWidth();
+        }
+        bufferedImage = rotateImage(bufferedImage, orientation);
+      }
+
+      for(int i = 0; i < maxWidths.length; i++)
+      {
+        if(imageSrcs[i] != null || images[i] != null)
+        {
+          continue;
+        }
+
+        if(isCopied(width, orientation, maxWidths[i]))
+        {
+          ExportMetrics.count("images.copied", 1);
+          if(mediaStore != null)
+          {
+            // the image is not changed, copy the file without loading it
+            imageSrcs[i] = data != null ? mediaStore.store(data, getMediaExtension(mimetype)) : mediaStore.store(imageFile, getMediaExtension(mimetype));
+            continue;
+          }
+          images[i] = data != null ? data : Files.readAllBytes(imageFile.toPath());
+          ExportMetrics.count("bytes.read", images[i].length);
+        }
+        else
+        {
+          // the smaller widths are resized from the larger image
+          bufferedImage = resizeImage(bufferedImage, width, maxWidths[i], methods[i]);
+          images[i] = encodeImage(bufferedImage, mimetype);
+          if(cacheKeys[i] != null)
+          {
+            imageCache.put(cacheKeys[i], images[i]);
+          }
+        }
+      }
+    }
+    finally
+    {
+      if(imageMemory != null)
+      {
+        imageMemory.release(permits);
+      }
+    }
+
+    for(int i = 0; i < maxWidths.length; i++)
+    {
+      if(imageSrcs[i] == null)
+      {
+        imageSrcs[i] = mediaStore != null ? mediaStore.store(images[i], getMediaExtension(mimetype)) : createImageData(mimetype, images[i]);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the image file is exported unchanged, it has the normal orientation and fits in the width
+   */
+  private static boolean isCopied(int width, int orientation, int maxWidth)
+  {
+    return width >= 0 && width <= maxWidth && orientation == 1;
+  }
+
+  /**
+   * estimate the memory of decoding an image, for subsampled decoding of the subsampled image
+   *
+   * @return the memory in bytes or -1 if the image size is unknown
+   */
+  private long estimateFootprint(ImageProbe imageProbe, int maxWidth)
+  {
+    int subsampling = 1;
+    if(subsample)
+    {
+      // as in decodeImage, the exported width is the height of the image file for rotations by 90 degrees
+      int exportedWidth = imageProbe.getOrientation() >= 5 ? imageProbe.getHeight() : imageProbe.getWidth();
+      subsampling = Math.max(exportedWidth / (2 * maxWidth), 1);
+    }
+    return ImageMemoryBudget.estimate(imageProbe.getWidth(), imageProbe.getHeight(), subsampling);
+  }
+
+  /**
+   * open an image for decoding, from memory if the file is read ahead
+   */
+  private ImageInputStream createImageInputStream(File imageFile, byte[] data)
+    throws IOException
+  {
+    if(data != null)
+    {
+      return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    }
+
+    ImageInputStream imageInputStream = ImageIO.createImageInputStream(imageFile);
+    if(imageInputStream == null)
+    {
+      throw new IIOException(String.format("can not read image file %s", imageFile));
+    }
+    return imageInputStream;
+  }
+
+  /**
+   * decode an image, with subsampling enabled only every n-th pixel is decoded to get an image of at least twice the
+   * export width
+   *
+   * @param imageInputStream the image, closed after decoding
+   * @param orientation      the exif image orientation
+   * @param maxWidth         the export width, 0 to decode every pixel
+   *
+   * @return the decoded image or null if there is no image reader for the file
+   */
+  private BufferedImage decodeImage(ImageInputStream imageInputStream, int orientation, int maxWidth)
+    throws IOException
+  {
+    // unlike ImageIO.read, the stream is also closed if there is no image reader for the file
+    try
+    {
+      Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(imageInputStream);
+      if(!imageReaders.hasNext())
+      {
+        return null;
+      }
+
+      ImageReader imageReader = imageReaders.next();
+      try
+      {
+        imageReader.setInput(imageInputStream, true, true);
+
+        ImageReadParam imageReadParam = imageReader.getDefaultReadParam();
+        if(subsample && maxWidth > 0)
+        {
+          // the exported width is the height of the image file for rotations by 90 degrees
+          int exportedWidth = orientation >= 5 ? imageReader.getHeight(0) : imageReader.getWidth(0);
+          int subsampling = Math.max(exportedWidth / (2 * maxWidth), 1);
+          if(subsampling > 1)
+          {
+            imageReadParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+          }
+        }
+        return imageReader.read(0, imageReadParam);
+      }
+      finally
+      {
+        imageReader.dispose();
+      }
+    }
+    finally
+    {
+      imageInputStream.close();
+    }
+  }
+
+  /**
+   * rotate an image to the normal image orientation
+   */
+  private BufferedImage rotateImage(BufferedImage image, int orientation)
+  {
+    long start = ExportMetrics.start();
+    for(Scalr.Rotation rotation : calcRotations(orientation))
+    {
+      image = Scalr.rotate(image, rotation);
+    }
+    if(orientation != 1)
+    {
+      ExportMetrics.stop("images.rotate", start);
+    }
+    return image;
+  }
+
+  /**
+   * resize an image to fit in HTML page and reduce size
+   *
+   * @param width the width of the image file
+   */
+  private BufferedImage resizeImage(BufferedImage image, int width, int maxWidth, Scalr.Method method)
+  {
+    if(width > maxWidth)
+    {
+      long start = ExportMetrics.start();
+      image = Scalr.resize(image, method, Scalr.Mode.FIT_TO_WIDTH, maxWidth);
+      ExportMetrics.stop("images.resize", start);
+    }
+    return image;
+  }
+
+  private byte[] encodeImage(BufferedImage image, String mimetype)
+    throws IOException
+  {
+    long start = ExportMetrics.start();
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    ImageIO.write(image, getImageInformalName(mimetype), byteArrayOutputStream);
+    ExportMetrics.stop("images.encode", start);
+    return byteArrayOutputStream.toByteArray();
   }
 
   private List<Message> sortDate(Collection<Message> value)
@@ -257,6 +1200,8 @@ public class MsgExportApplication
   {
     private Contact contact;
     private List<Message> messages;
+    private Iterator<Message> messageIterator;
+    private Page page;
 
     public ContactMessages(Contact contact, List<Message> messages)
     {
@@ -264,36 +1209,71 @@ public class MsgExportApplication
       this.messages = messages;
     }
 
+    /**
+     * @param contact         the contact
+     * @param messageIterator the streamed messages ordered by date, they can be listed only once by the template
+     */
+    public ContactMessages(Contact contact, Iterator<Message> messageIterator)
+    {
+      this.contact = contact;
+      this.messageIterator = messageIterator;
+    }
+
+    public ContactMessages(Contact contact, Page page)
+    {
+      this(contact, page.getMessages());
+      this.page = page;
+    }
+
     public Contact getContact()
     {
       return contact;
     }
 
+    /**
+     * @return the messages ordered by date or null if they are streamed
+     */
     public List<Message> getMessages()
     {
       return messages;
     }
+
+    /**
+     * @return the messages ordered by date, in streaming mode they can be iterated only once
+     */
+    public Iterator<Message> getMessageIterator()
+    {
+      return messages != null ? messages.iterator() : messageIterator;
+    }
+
+    /**
+     * @return the page of the messages or null if all messages are exported to one file
+     */
+    public Page getPage()
+    {
+      return page;
+    }
   }
 
-  private static class ImageData
+  public static class ContactPages
   {
-    private final BufferedImage image;
-    private final int orientation;
+    private Contact contact;
+    private List<Page> pages;
 
-    public ImageData(BufferedImage image, int orientation)
+    public ContactPages(Contact contact, List<Page> pages)
     {
-      this.image = image;
-      this.orientation = orientation;
+      this.contact = contact;
+      this.pages = pages;
     }
 
-    public BufferedImage getImage()
+    public Contact getContact()
     {
-      return image;
+      return contact;
     }
 
-    public int getOrientation()
+    public List<Page> getPages()
     {
-      return orientation;
+      return pages;
     }
   }
 }
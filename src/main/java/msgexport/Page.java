@@ -0,0 +1,134 @@
+package msgexport;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A page of the messages of a contact, with the links to the neighbour pages and the index page of the contact.
+ */
+public class Page
+{
+  private final int number;
+  private final int count;
+  private final String contactName;
+  private final List<Message> messages;
+
+  public Page(int number, int count, String contactName, List<Message> messages)
+  {
+    this.number = number;
+    this.count = count;
+    this.contactName = contactName;
+    this.messages = messages;
+  }
+
+  /**
+   * Split the messages of a contact into pages.
+   *
+   * @param messages the messages ordered by date
+   * @param pageSize the maximal number of messages of a page, 0 for no limit
+   * @param monthly  true to start a new page for every calendar month
+   *
+   * @return the messages of every page
+   */
+  public static List<List<Message>> split(List<Message> messages, int pageSize, boolean monthly)
+  {
+    List<List<Message>> pages = new ArrayList<>();
+    List<Message> page = new ArrayList<>();
+    Calendar calendar = Calendar.getInstance();
+    int month = -1;
+    for(Message message : messages)
+    {
+      if(monthly)
+      {
+        calendar.setTime(message.getDate());
+        int messageMonth = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+        if(messageMonth != month && !page.isEmpty())
+        {
+          pages.add(page);
+          page = new ArrayList<>();
+        }
+        month = messageMonth;
+      }
+      if(pageSize > 0 && page.size() >= pageSize)
+      {
+        pages.add(page);
+        page = new ArrayList<>();
+      }
+      page.add(message);
+    }
+    if(!page.isEmpty())
+    {
+      pages.add(page);
+    }
+
+    return pages;
+  }
+
+  public static String getIndexFilename(String contactName)
+  {
+    return String.format("%s.html", contactName);
+  }
+
+  public static String getFilename(String contactName, int number)
+  {
+    return String.format("%s-%04d.html", contactName, number);
+  }
+
+  public int getNumber()
+  {
+    return number;
+  }
+
+  public int getCount()
+  {
+    return count;
+  }
+
+  public String getFilename()
+  {
+    return getFilename(contactName, number);
+  }
+
+  public String getIndexFilename()
+  {
+    return getIndexFilename(contactName);
+  }
+
+  /**
+   * @return the filename of the previous page or null for the first page
+   */
+  public String getPreviousFilename()
+  {
+    return number > 1 ? getFilename(contactName, number - 1) : null;
+  }
+
+  /**
+   * @return the filename of the next page or null for the last page
+   */
+  public String getNextFilename()
+  {
+    return number < count ? getFilename(contactName, number + 1) : null;
+  }
+
+  public Date getFirstDate()
+  {
+    return messages.get(0).getDate();
+  }
+
+  public Date getLastDate()
+  {
+    return messages.get(messages.size() - 1).getDate();
+  }
+
+  public int getSize()
+  {
+    return messages.size();
+  }
+
+  public List<Message> getMessages()
+  {
+    return messages;
+  }
+}
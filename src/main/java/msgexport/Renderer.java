@@ -0,0 +1,18 @@
+package msgexport;
+
+import freemarker.template.TemplateException;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Renderer of an export file from its model, eg. a FreeMarker template by {@code template::process}.
+ *
+ * @param <T> the model type
+ */
+@FunctionalInterface
+public interface Renderer<T>
+{
+  void render(T model, Writer writer)
+    throws IOException, TemplateException;
+}
@@ -0,0 +1,169 @@
+package msgexport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * Writer of messages into a SQLite search database with a FTS5 full text index of the message texts.
+ * The rows are inserted in large transactions, the full text index and the contact index are built once after the
+ * bulk load.
+ * <p>
+ * search: {@code SELECT m.contact, m.date, m.text FROM message_fts f JOIN message m ON m.id = f.rowid
+ * WHERE message_fts MATCH 'word' ORDER BY rank}
+ */
+public class SearchDatabaseWriter
+  implements MessageRowWriter
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchDatabaseWriter.class);
+
+  private static final int BATCH_SIZE = 10000;
+  private static final int TRANSACTION_SIZE = 100000;
+
+  private final File file;
+  private final Connection connection;
+  private final PreparedStatement insert;
+  private long rows;
+
+  /**
+   * Create a new search database, an existing file is replaced.
+   *
+   * @param file the database file
+   */
+  public SearchDatabaseWriter(File file)
+    throws IOException
+  {
+    this.file = file;
+    Files.deleteIfExists(file.toPath());
+
+    Connection newConnection = null;
+    try
+    {
+      newConnection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", file.getAbsolutePath()));
+      try (Statement statement = newConnection.createStatement())
+      {
+        // the database is rebuilt by the next export after a crash
+        statement.execute("PRAGMA journal_mode = OFF");
+        statement.execute("PRAGMA synchronous = OFF");
+        statement.execute("CREATE TABLE message ("
+                          + " id INTEGER PRIMARY KEY,"
+                          + " contact TEXT NOT NULL,"
+                          + " handle TEXT NOT NULL,"
+                          + " date INTEGER NOT NULL,"
+                          + " type INTEGER NOT NULL,"
+                          + " sms INTEGER NOT NULL,"
+                          + " text TEXT NOT NULL,"
+                          + " attachment TEXT)");
+        // external content table, the texts are stored once in the message table
+        statement.execute("CREATE VIRTUAL TABLE message_fts USING fts5(text, content='message', content_rowid='id')");
+      }
+      newConnection.setAutoCommit(false);
+      insert = newConnection.prepareStatement("INSERT INTO message (contact, handle, date, type, sms, text, attachment) VALUES (?, ?, ?, ?, ?, ?, ?)");
+    }
+    catch(SQLException e)
+    {
+      if(newConnection != null)
+      {
+        try
+        {
+          newConnection.close();
+        }
+        catch(SQLException closeException)
+        {
+          e.addSuppressed(closeException);
+        }
+      }
+      throw new IOException(String.format("can not create search database %s", file), e);
+    }
+    connection = newConnection;
+  }
+
+  @Override
+  public void write(String contact, Message message)
+    throws IOException
+  {
+    try
+    {
+      insert.setString(1, contact);
+      insert.setString(2, message.getUniqueID());
+      insert.setLong(3, message.getDate().getTime());
+      insert.setInt(4, message.getType());
+      insert.setInt(5, message.isSms() ? 1 : 0);
+      insert.setString(6, message.getText());
+      if(message.getAttachmentFilename() != null)
+      {
+        insert.setString(7, message.getAttachmentFilename());
+      }
+      else
+      {
+        insert.setNull(7, Types.VARCHAR);
+      }
+      insert.addBatch();
+
+      rows++;
+      if(rows % BATCH_SIZE == 0)
+      {
+        insert.executeBatch();
+      }
+      if(rows % TRANSACTION_SIZE == 0)
+      {
+        connection.commit();
+      }
+    }
+    catch(SQLException e)
+    {
+      throw new IOException(String.format("can not write to search database %s", file), e);
+    }
+  }
+
+  /**
+   * Insert the remaining rows, build the indexes and close the database.
+   */
+  @Override
+  public void close()
+    throws IOException
+  {
+    try
+    {
+      insert.executeBatch();
+      insert.close();
+      connection.commit();
+
+      long start = ExportMetrics.start();
+      try (Statement statement = connection.createStatement())
+      {
+        statement.execute("INSERT INTO message_fts(message_fts) VALUES('rebuild')");
+        statement.execute("INSERT INTO message_fts(message_fts) VALUES('optimize')");
+        statement.execute("CREATE INDEX message_contact ON message(contact, date)");
+        statement.execute("CREATE INDEX message_handle ON message(handle, date)");
+      }
+      connection.commit();
+      ExportMetrics.stop("search.index", start);
+      LOGGER.info(String.format("indexed %d messages in %s", rows, file.getName()));
+    }
+    catch(SQLException e)
+    {
+      throw new IOException(String.format("can not index search database %s", file), e);
+    }
+    finally
+    {
+      try
+      {
+        connection.close();
+      }
+      catch(SQLException e)
+      {
+        LOGGER.warn(String.format("can not close search database %s", file), e);
+      }
+    }
+  }
+}
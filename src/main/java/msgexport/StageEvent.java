@@ -0,0 +1,35 @@
+package msgexport;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of a finished export stage, emitted with the option {@code --jfr}. Needs a JVM with JFR support.
+ */
+@Name("msgexport.Stage")
+@Label("Export Stage")
+@Category("Message Export")
+class StageEvent
+  extends Event
+{
+  @Label("Stage")
+  String stage;
+
+  @Label("Duration")
+  @Timespan(Timespan.NANOSECONDS)
+  long nanos;
+
+  static void emit(String stage, long nanos)
+  {
+    StageEvent event = new StageEvent();
+    if(event.isEnabled())
+    {
+      event.stage = stage;
+      event.nanos = nanos;
+      event.commit();
+    }
+  }
+}
@@ -24,13 +24,27 @@ public class Util
     return null;
   }
 
+  public static String sha1(byte[] data)
+  {
+    try
+    {
+      return bytesToHex(MessageDigest.getInstance("sha1").digest(data));
+    }
+    catch(NoSuchAlgorithmException e)
+    {
+      // ignore
+    }
+
+    return null;
+  }
+
   public static String createFilename(String sha1)
   {
     // ios10 prefix sha1 filename
     return sha1.substring(0, 2) + "/" + sha1;
   }
 
-  private static String bytesToHex(byte[] bytes)
+  static String bytesToHex(byte[] bytes)
   {
     char[] hexChars = new char[bytes.length * 2];
     for(int j = 0; j < bytes.length; j++)
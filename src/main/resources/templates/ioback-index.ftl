@@ -0,0 +1,36 @@
+<!DOCTYPE html>
+<html>
+  <head>
+    <meta charset="utf-8">
+    <style>
+
+      body {
+        background: white;
+        font-family: sans-serif;
+        font-size: 14px;
+      }
+
+      li {
+        margin: 0 0 0.5em;
+      }
+
+      li span {
+        font-size: 70%;
+      }
+    </style>
+
+    <title>${contact.name?html}</title>
+  </head>
+  <body>
+  <#setting datetime_format="dd.MM.yyyy HH:mm:ss">
+  <#setting url_escaping_charset="UTF-8">
+    <h1>${contact.name?html}</h1>
+
+    <ol>
+    <#list pages as page>
+      <li><a href="${page.filename?url}">${page.firstDate?datetime} - ${page.lastDate?datetime}</a> <span>${page.size} messages</span></li>
+    </#list>
+    </ol>
+  </body>
+
+</html>
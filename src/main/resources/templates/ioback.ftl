@@ -89,21 +89,36 @@
       }
     </style>
 
-    <title>${contact.name}</title>
+    <title>${contact.name?html}</title>
   </head>
   <body>
   <#setting datetime_format="dd.MM.yyyy HH:mm:ss">
-    <h1>${contact.name}</h1>
+  <#setting url_escaping_charset="UTF-8">
+    <h1>${contact.name?html}</h1>
+    <#if page??>
+    <nav style="clear: both; text-align: center">
+      <#if page.previousFilename??><a href="${page.previousFilename?url}">&lt;</a></#if>
+      <a href="${page.indexFilename?url}">${page.number} / ${page.count}</a>
+      <#if page.nextFilename??><a href="${page.nextFilename?url}">&gt;</a></#if>
+    </nav>
+    </#if>
 
     <blockquote class="chat">
-    <#list messages as message>
+    <#list messageIterator as message>
       <p class="${(message.type==0)?then("them", "me")} ${(message.type==0)?then("them", "me")}-${(message.sms)?then("sms", "iMessage")}">
-        <#if message.imageData??><img style="max-width: 300px" src="${message.imageData}"/></#if>
-      ${message.text}
+        <#if message.thumbnailData??><a href="${message.imageData}"><img loading="lazy" style="max-width: 300px" src="${message.thumbnailData}"/></a><#elseif message.imageData??><img style="max-width: 300px" src="${message.imageData}"/><#elseif message.attachmentData??><a href="${message.attachmentData}">${message.attachmentName?html}</a></#if>
+      ${message.text?html}
         <br/>
         <span>${message.date?datetime}</span></p>
     </#list>
     </blockquote>
+    <#if page??>
+    <nav style="clear: both; text-align: center">
+      <#if page.previousFilename??><a href="${page.previousFilename?url}">&lt;</a></#if>
+      <a href="${page.indexFilename?url}">${page.number} / ${page.count}</a>
+      <#if page.nextFilename??><a href="${page.nextFilename?url}">&gt;</a></#if>
+    </nav>
+    </#if>
   </body>
 
 </html>